@@ -0,0 +1,112 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import javax.sql.rowset.serial.SerialClob;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in for the checker queries, answering for request ids of {@link SyntheticWorkbookGenerator}
+ * workbooks. Answers are derived from a hash of the request id, so they are stable across runs. Every query
+ * waits queryLatencyMicros plus perKeyLatencyNanos per looked-up key to model the database round trip.
+ */
+public class FakeVerificationBackend implements VerificationBackend {
+
+    private static final String[] RULES = {
+            Constants.RULE_FULL_NAME_AND_ADDRESS, Constants.RULE_IDENTIFIER, Constants.RULE_CITY_NAME,
+            Constants.RULE_COUNTRY_NAME, Constants.RULE_PORT_NAME, Constants.RULE_GOODS_NAME,
+            Constants.RULE_NARRATIVE_FULL_NAME
+    };
+
+    private final long queryLatencyMicros;
+    private final long perKeyLatencyNanos;
+    private final int documentChars;
+
+    public FakeVerificationBackend(long queryLatencyMicros, long perKeyLatencyNanos, int documentChars) {
+        this.queryLatencyMicros = queryLatencyMicros;
+        this.perKeyLatencyNanos = perKeyLatencyNanos;
+        this.documentChars = documentChars;
+    }
+
+    @Override
+    public Session openSession() {
+        return new Session() {
+            @Override
+            public void fetchRequestDocuments(List<String> requestIds, DocumentConsumer consumer) throws Exception {
+                await(requestIds.size());
+                for (String requestId : requestIds) {
+                    int hash = mix(requestId);
+                    // a quarter of the requests never reached matching
+                    int documents = (hash & 3) == 0 ? 0 : 1 + ((hash >>> 2) & 1);
+                    for (int d = 0; d < documents; d++) {
+                        consumer.accept(requestId, new SerialClob(document(requestId, hash >>> (4 + 3 * d)).toCharArray()));
+                    }
+                }
+            }
+
+            @Override
+            public Map<String, BigDecimal> fetchRunKeys(List<String> requestIds) {
+                await(requestIds.size());
+                Map<String, BigDecimal> found = new HashMap<>();
+                for (String requestId : requestIds) {
+                    int hash = mix(requestId);
+                    if ((hash & 3) != 0) {
+                        found.put(requestId, BigDecimal.valueOf(hash & 0x7fffffff));
+                    }
+                }
+                return found;
+            }
+
+            @Override
+            public boolean[] candidatesPresent(String table, String targetCol, List<BigDecimal> runKeys, List<String> nUids) {
+                await(runKeys.size());
+                boolean[] present = new boolean[runKeys.size()];
+                for (int i = 0; i < present.length; i++) {
+                    present[i] = ((runKeys.get(i).intValue() ^ nUids.get(i).hashCode() ^ targetCol.hashCode()) & 1) == 0;
+                }
+                return present;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private String document(String requestId, int bits) {
+        String rule = RULES[(bits & 0x7fffffff) % RULES.length];
+        // most documents carry the row's source input, some a different one
+        String input = (bits & 0x70) == 0 ? "SOMEONE ELSE" : SyntheticWorkbookGenerator.sourceInput(token(requestId));
+        StringBuilder sb = new StringBuilder(documentChars + 128);
+        sb.append("{\"requestId\":\"").append(requestId).append("\",\"payload\":\"");
+        while (sb.length() < documentChars) {
+            sb.append("lorem ipsum ");
+        }
+        sb.append("\",").append(rule).append("\",\"input\":\"").append(input).append("\"}");
+        return sb.toString();
+    }
+
+    // Request ids are the transaction token followed by the message type digit
+    private static long token(String requestId) {
+        try {
+            return Long.parseLong(requestId.substring(3, requestId.length() - 1));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private void await(int keys) {
+        long nanos = TimeUnit.MICROSECONDS.toNanos(queryLatencyMicros) + perKeyLatencyNanos * keys;
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private static int mix(String value) {
+        int h = value.hashCode() * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,187 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the stages of one input file: parsing, row classification, checker verification and writing
+ * the analysis report. Input comes from {@link SyntheticWorkbookGenerator}, the checker queries are answered
+ * by {@link FakeVerificationBackend} with the configured latency.
+ *
+ * Run with the JMH runner, e.g. {@code java -cp <classpath> org.openjdk.jmh.Main IssuesListingBenchmark -p rows=100000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IssuesListingBenchmark {
+
+    @Param({"20000"})
+    public int rows;
+
+    // round trip per checker query, in microseconds
+    @Param({"0", "2000"})
+    public long queryLatencyMicros;
+
+    @Param({"4000"})
+    public int documentChars;
+
+    private Path dir;
+    private Path input;
+    private ColumnPlan plan;
+    private final List<String[]> values = new ArrayList<>();
+    private final List<ExcelProcessor.PendingRow> verified = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("issues-bench");
+        input = dir.resolve("input" + Constants.EXTENSION);
+        SyntheticWorkbookGenerator.generate(input, rows, 0, 42L);
+
+        ExcelProcessor.osHeaders = new ArrayList<>();
+        ExcelProcessor.otHeaders = new ArrayList<>();
+        ExcelProcessor.allHeaders = new ArrayList<>();
+        ExcelProcessor.firstFileHeaders = new CountDownLatch(1);
+        BatchVerifier.configureBackend(new FakeVerificationBackend(queryLatencyMicros, 0, documentChars));
+        try (ReportWriter headersOnly = new ReportWriter(dir.resolve("headers" + Constants.EXTENSION).toString(), 100)) {
+            WorkbookReader.read(input, true, new WorkbookReader.SheetRowHandler() {
+                @Override
+                public void header(String[] columns) throws Exception {
+                    Map<String, Integer> colIndices = new HashMap<>();
+                    List<String> allColumns = ExcelProcessor.indexColumns(columns, colIndices);
+                    ExcelProcessor.registerHeaders(0, allColumns, headersOnly, Collections.emptyList());
+                    plan = new ColumnPlan(colIndices, ExcelProcessor.osHeaders, ExcelProcessor.otHeaders, ExcelProcessor.allHeaders);
+                }
+
+                @Override
+                public void row(int rowNum, String[] row) {
+                    values.add(row);
+                }
+            });
+        }
+        // rows with their checks resolved, the input of the write benchmark
+        verified.addAll(verify(pendingRows()));
+    }
+
+    // The verify benchmark times lookups from cold request document and run key caches
+    @Setup(Level.Invocation)
+    public void resetCaches() {
+        BatchVerifier.configureRequestCache(Constants.DEFAULT_REQUEST_CACHE_MB * 1024L * 1024L);
+        BatchVerifier.resetRunKeys();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void parseStreaming(Blackhole bh) throws Exception {
+        parse(true, bh);
+    }
+
+    @Benchmark
+    public void parseDom(Blackhole bh) throws Exception {
+        parse(false, bh);
+    }
+
+    @Benchmark
+    public void classifyRows(Blackhole bh) {
+        for (ExcelProcessor.PendingRow pending : pendingRows()) {
+            bh.consume(ExcelProcessor.prepareRow(pending, plan));
+            bh.consume(pending.requestId);
+        }
+    }
+
+    // Checker lookups of all failing rows in verification-batch sized chunks, starting from a cold cache
+    @Benchmark
+    public List<ExcelProcessor.PendingRow> verify() {
+        return verify(pendingRows());
+    }
+
+    @Benchmark
+    public void writeReport() throws Exception {
+        try (ReportWriter report = new ReportWriter(dir.resolve("report" + Constants.EXTENSION).toString(), Constants.DEFAULT_OUTPUT_ROW_WINDOW)) {
+            report.addSheet(Constants.SHEET_OS, ExcelProcessor.osHeaders);
+            report.addSheet(Constants.SHEET_OT, ExcelProcessor.otHeaders);
+            Map<String, OutputSink> writers = new HashMap<>();
+            writers.put(Constants.SHEET_OS, report);
+            writers.put(Constants.SHEET_OT, report);
+            try (OrderedOutput output = new OrderedOutput(1, writers)) {
+                OrderedOutput.FileOutput out = output.file(0);
+                OrderedOutput.Chunk chunk = out.newChunk();
+                int rows = 0;
+                for (ExcelProcessor.PendingRow pending : verified) {
+                    ExcelProcessor.processRow(pending, plan, chunk);
+                    if (++rows % Constants.DEFAULT_VERIFICATION_BATCH_SIZE == 0) {
+                        out.complete(chunk);
+                        chunk = out.newChunk();
+                    }
+                }
+                out.complete(chunk);
+                out.finish();
+            }
+        }
+    }
+
+    private void parse(boolean streaming, Blackhole bh) throws Exception {
+        WorkbookReader.read(input, streaming, new WorkbookReader.SheetRowHandler() {
+            @Override
+            public void header(String[] columns) {
+                bh.consume(columns);
+            }
+
+            @Override
+            public void row(int rowNum, String[] row) {
+                bh.consume(row);
+            }
+        });
+    }
+
+    private List<ExcelProcessor.PendingRow> pendingRows() {
+        List<ExcelProcessor.PendingRow> pending = new ArrayList<>(values.size());
+        for (int r = 0; r < values.size(); r++) {
+            pending.add(new ExcelProcessor.PendingRow(r + 1, values.get(r)));
+        }
+        return pending;
+    }
+
+    private List<ExcelProcessor.PendingRow> verify(List<ExcelProcessor.PendingRow> rows) {
+        List<ExcelProcessor.PendingRow> failing = new ArrayList<>();
+        for (int from = 0; from < rows.size(); from += Constants.DEFAULT_VERIFICATION_BATCH_SIZE) {
+            List<ExcelProcessor.PendingRow> chunk = rows.subList(from, Math.min(from + Constants.DEFAULT_VERIFICATION_BATCH_SIZE, rows.size()));
+            List<BatchVerifier.InputCheck> inputChecks = new ArrayList<>();
+            List<ExcelProcessor.PendingRow> chunkFailing = new ArrayList<>();
+            for (ExcelProcessor.PendingRow pending : chunk) {
+                if (ExcelProcessor.prepareRow(pending, plan)) {
+                    chunkFailing.add(pending);
+                    if (pending.osInputCheck != null) inputChecks.add(pending.osInputCheck);
+                    if (pending.otInputCheck != null) inputChecks.add(pending.otInputCheck);
+                }
+            }
+            try (VerificationBackend.Session session = BatchVerifier.openSession()) {
+                BatchVerifier.checker1(session, inputChecks);
+                List<BatchVerifier.CandidateCheck> candidateChecks = new ArrayList<>();
+                for (ExcelProcessor.PendingRow pending : chunkFailing) {
+                    if (pending.isOtFail && Constants.YES.equals(pending.otInputCheck.result)) {
+                        pending.candidateCheck = ExcelProcessor.checker2(pending.requestId, pending.values, plan);
+                        candidateChecks.add(pending.candidateCheck);
+                    }
+                }
+                BatchVerifier.checker2(session, candidateChecks);
+            }
+            failing.addAll(chunkFailing);
+        }
+        return failing;
+    }
+}
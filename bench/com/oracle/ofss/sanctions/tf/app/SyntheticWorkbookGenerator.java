@@ -0,0 +1,208 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Writes input workbooks with the column layout of the real test-result exports: OS/OT statuses and
+ * transaction tokens, one populated "Message *" column, "OS/OT # * matches" webservice columns, N_UID,
+ * Watchlist and Target Column. Values are drawn from a seeded Random so runs are repeatable, and the source
+ * input of a row is derived from its token so {@link FakeVerificationBackend} can answer consistently.
+ *
+ * Usage: SyntheticWorkbookGenerator &lt;outputDirectory&gt; &lt;files&gt; &lt;rowsPerFile&gt; [seed]
+ */
+public class SyntheticWorkbookGenerator {
+
+    static final String[] MESSAGE_TYPES = {Constants.SWIFT, Constants.FEDWIRE, Constants.ISO20022};
+    static final String[] OS_WEBSERVICES = {"NameAndAddress", "Identifier", "City", "Country", "Narrative NameAndAddress"};
+    static final String[] OT_WEBSERVICES = {"NameAndAddress", "City", "Country", "Port", "Goods"};
+    static final String[] WATCHLISTS = {"OFAC", "HMT", "EU", "UN", "CITY", "COUNTRY", "PORT", "GOODS", "UNKNOWN"};
+    static final String[] TARGET_COLUMNS = {"V_NAME", "V_CITY", "V_COUNTRY", "V_PORT"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: SyntheticWorkbookGenerator <outputDirectory> <files> <rowsPerFile> [seed]");
+            return;
+        }
+        Path dir = Paths.get(args[0]);
+        int files = Integer.parseInt(args[1]);
+        int rows = Integer.parseInt(args[2]);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        Files.createDirectories(dir);
+        for (int f = 0; f < files; f++) {
+            Path file = dir.resolve("synthetic_" + f + Constants.EXTENSION);
+            generate(file, rows, (long) f * rows, seed + f);
+            System.out.println("Generated " + file);
+        }
+    }
+
+    static String[] header() {
+        String[] header = new String[12 + OS_WEBSERVICES.length + OT_WEBSERVICES.length];
+        int c = 0;
+        header[c++] = "Sr No";
+        header[c++] = Constants.SOURCE_INPUT;
+        for (String type : MESSAGE_TYPES) {
+            header[c++] = Constants.MESSAGE_PREFIX + type;
+        }
+        header[c++] = "OS" + Constants.TRANSACTION_TOKEN_SUFFIX;
+        header[c++] = "OT" + Constants.TRANSACTION_TOKEN_SUFFIX;
+        header[c++] = Constants.OS_TEST_STATUS;
+        header[c++] = Constants.OT_TEST_STATUS;
+        for (String webservice : OS_WEBSERVICES) {
+            header[c++] = "OS" + Constants.WEBSERVICE_PREFIX + webservice + Constants.MATCHES_SUFFIX;
+        }
+        for (String webservice : OT_WEBSERVICES) {
+            header[c++] = "OT" + Constants.WEBSERVICE_PREFIX + webservice + Constants.MATCHES_SUFFIX;
+        }
+        header[c++] = Constants.N_UID;
+        header[c++] = Constants.WATCHLIST;
+        header[c++] = Constants.TARGET_COLUMN;
+        return header;
+    }
+
+    // Transaction tokens start after firstToken so several files never share a request id
+    static void generate(Path file, int rows, long firstToken, long seed) throws IOException {
+        checkLayout();
+        Random random = new Random(seed);
+        String[] header = header();
+        Map<String, Integer> columns = columns(header);
+        SXSSFWorkbook wb = new SXSSFWorkbook(100);
+        try (FileOutputStream fos = new FileOutputStream(file.toFile())) {
+            Sheet sheet = wb.createSheet("Results");
+            Row headerRow = sheet.createRow(0);
+            for (int c = 0; c < header.length; c++) {
+                headerRow.createCell(c).setCellValue(header[c]);
+            }
+            for (int r = 1; r <= rows; r++) {
+                Object[] cells = row(columns, header.length, r, firstToken + r, random);
+                Row row = sheet.createRow(r);
+                for (int c = 0; c < cells.length; c++) {
+                    if (cells[c] instanceof Number) {
+                        row.createCell(c).setCellValue(((Number) cells[c]).doubleValue());
+                    } else if (cells[c] != null) {
+                        row.createCell(c).setCellValue((String) cells[c]);
+                    }
+                }
+            }
+            wb.write(fos);
+        } finally {
+            wb.dispose();
+            wb.close();
+        }
+    }
+
+    // The cells of one data row, null where the cell is left empty. Every position is looked up by header name.
+    static Object[] row(Map<String, Integer> columns, int width, int rowNum, long token, Random random) {
+        Object[] cells = new Object[width];
+        cells[columns.get("Sr No")] = rowNum;
+        cells[columns.get(Constants.SOURCE_INPUT)] = sourceInput(token);
+        cells[columns.get(Constants.MESSAGE_PREFIX + MESSAGE_TYPES[random.nextInt(MESSAGE_TYPES.length)])] = "Y";
+        cells[columns.get("OS" + Constants.TRANSACTION_TOKEN_SUFFIX)] = transactionToken(token);
+        cells[columns.get("OT" + Constants.TRANSACTION_TOKEN_SUFFIX)] = transactionToken(token);
+        // roughly a quarter of the rows fail OS, a quarter fail OT
+        cells[columns.get(Constants.OS_TEST_STATUS)] = random.nextInt(4) == 0 ? Constants.FAIL_STATUS : "PASS";
+        cells[columns.get(Constants.OT_TEST_STATUS)] = random.nextInt(4) == 0 ? Constants.FAIL_STATUS : "PASS";
+        if (random.nextInt(5) > 0) {
+            cells[columns.get(webserviceColumn("OS", OS_WEBSERVICES[random.nextInt(OS_WEBSERVICES.length)]))] = 1 + random.nextInt(3);
+        }
+        if (random.nextInt(5) > 0) {
+            cells[columns.get(webserviceColumn("OT", OT_WEBSERVICES[random.nextInt(OT_WEBSERVICES.length)]))] = 1 + random.nextInt(3);
+        }
+        cells[columns.get(Constants.N_UID)] = String.valueOf(random.nextInt(100000));
+        cells[columns.get(Constants.WATCHLIST)] = WATCHLISTS[random.nextInt(WATCHLISTS.length)];
+        cells[columns.get(Constants.TARGET_COLUMN)] = TARGET_COLUMNS[random.nextInt(TARGET_COLUMNS.length)];
+        return cells;
+    }
+
+    // Reads generated rows back through the production column plan and prepareRow, so the benchmarks cannot
+    // silently run a workload where the statuses, webservices or checker2 columns are not where the app looks.
+    static void checkLayout() {
+        String[] header = header();
+        Map<String, Integer> columns = columns(header);
+        Map<String, Integer> colIndices = new HashMap<>();
+        ExcelProcessor.indexColumns(header, colIndices);
+        ColumnPlan plan = new ColumnPlan(colIndices, Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+        Random random = new Random(0);
+        int otLookups = 0;
+        for (int r = 1; r <= 1000; r++) {
+            Object[] cells = row(columns, header.length, r, r, random);
+            String[] values = new String[cells.length];
+            for (int c = 0; c < cells.length; c++) {
+                values[c] = cells[c] == null ? "" : String.valueOf(cells[c]);
+            }
+            ExcelProcessor.PendingRow pending = new ExcelProcessor.PendingRow(r, values);
+            boolean failing = ExcelProcessor.prepareRow(pending, plan);
+            boolean osFail = Constants.FAIL_STATUS.equals(cells[columns.get(Constants.OS_TEST_STATUS)]);
+            boolean otFail = Constants.FAIL_STATUS.equals(cells[columns.get(Constants.OT_TEST_STATUS)]);
+            check(failing == (osFail || otFail) && pending.isOsFail == osFail && pending.isOtFail == otFail, r, "test statuses");
+            check(values[columns.get(Constants.N_UID)].equals(ColumnPlan.value(values, plan.nUid))
+                    && values[columns.get(Constants.WATCHLIST)].equals(ColumnPlan.value(values, plan.watchlist))
+                    && values[columns.get(Constants.TARGET_COLUMN)].equals(ColumnPlan.value(values, plan.targetColumn)), r, "checker2 columns");
+            if (!failing) continue;
+            check(pending.requestId.equals(transactionToken(r) + messageSuffix(cells, columns)), r, "request id");
+            if (osFail) {
+                check(Objects.equals(pending.osInputCheck.searchText, searchText(cells, columns, "OS", OS_WEBSERVICES)), r, "OS webservice");
+            }
+            if (otFail) {
+                String searchText = searchText(cells, columns, "OT", OT_WEBSERVICES);
+                check(Objects.equals(pending.otInputCheck.searchText, searchText), r, "OT webservice");
+                if (!searchText.isEmpty()) otLookups++;
+            }
+        }
+        check(otLookups > 0, 0, "OT webservice lookups");
+    }
+
+    private static void check(boolean condition, int rowNum, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Generated row " + rowNum + " does not read back as generated: " + what);
+        }
+    }
+
+    private static Map<String, Integer> columns(String[] header) {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int c = 0; c < header.length; c++) {
+            columns.put(header[c], c);
+        }
+        return columns;
+    }
+
+    private static String webserviceColumn(String type, String webservice) {
+        return type + Constants.WEBSERVICE_PREFIX + webservice + Constants.MATCHES_SUFFIX;
+    }
+
+    // Request id suffix of the populated "Message *" column, in MESSAGE_TYPES order
+    private static int messageSuffix(Object[] cells, Map<String, Integer> columns) {
+        for (int m = 0; m < MESSAGE_TYPES.length; m++) {
+            if (cells[columns.get(Constants.MESSAGE_PREFIX + MESSAGE_TYPES[m])] != null) return m + 1;
+        }
+        return 0;
+    }
+
+    // Rule text of the populated webservice column, "" when there is none (checker1 answers NA)
+    private static String searchText(Object[] cells, Map<String, Integer> columns, String type, String[] webservices) {
+        for (String webservice : webservices) {
+            if (cells[columns.get(webserviceColumn(type, webservice))] != null) return ExcelProcessor.getSearchText(webservice);
+        }
+        return "";
+    }
+
+    static String transactionToken(long token) {
+        return "TXN" + token;
+    }
+
+    static String sourceInput(long token) {
+        return "NAME " + (token % 997);
+    }
+}
@@ -0,0 +1,101 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * AIMD limit on the verification batches querying the database at once. Every query within the latency target
+ * raises the limit by 1/limit, so it grows by about one per round of queries; a timeout, a lost connection or a
+ * query slower than the target halves it, at most once per target interval so a burst of failures from the same
+ * overload counts once.
+ *
+ * Batches that find the limit reached are not blocked: they wait in a queue, in arrival order, and the next one
+ * is started as soon as a release or a raised limit makes room.
+ */
+public class AdaptiveLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    // batches waiting for room, each started holding its permit
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+    public AdaptiveLimiter(int minLimit, int maxLimit, long latencyTargetMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTargetNanos = latencyTargetMillis * 1_000_000L;
+        this.limit = this.maxLimit;
+        this.lastDecrease = System.nanoTime() - latencyTargetNanos;
+    }
+
+    // Takes a permit and returns true when there is room and no batch is waiting for it; otherwise queues
+    // onPermit, which is run with the permit taken once it is this batch's turn, and returns false
+    public boolean acquireOrWait(Runnable onPermit) {
+        synchronized (this) {
+            if (waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            waiting.add(onPermit);
+            return false;
+        }
+    }
+
+    public void release() {
+        List<Runnable> admitted;
+        synchronized (this) {
+            inFlight--;
+            admitted = admit();
+        }
+        admitted.forEach(Runnable::run);
+    }
+
+    // Feeds back one query: its latency and whether it failed on a timeout or lost connection
+    public void onSample(long latencyNanos, boolean dropped) {
+        List<Runnable> admitted;
+        synchronized (this) {
+            adjust(latencyNanos, dropped);
+            admitted = admit();
+        }
+        admitted.forEach(Runnable::run);
+    }
+
+    // Hands the room there is to the longest waiting batches, to be started outside the lock
+    private List<Runnable> admit() {
+        List<Runnable> admitted = new ArrayList<>();
+        while (!waiting.isEmpty() && inFlight < (int) limit) {
+            inFlight++;
+            admitted.add(waiting.poll());
+        }
+        return admitted;
+    }
+
+    private void adjust(long latencyNanos, boolean dropped) {
+        long now = System.nanoTime();
+        if (dropped || latencyNanos > latencyTargetNanos) {
+            if (now - lastDecrease < latencyTargetNanos) return;
+            lastDecrease = now;
+            double previous = limit;
+            limit = Math.max(minLimit, limit * Constants.LIMIT_DECREASE_RATIO);
+            if ((int) limit < (int) previous) {
+                log.info("Database {} ({} ms), lowering concurrent verification batches to {}",
+                        dropped ? "timeout" : "slowdown", latencyNanos / 1_000_000L, (int) limit);
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+}
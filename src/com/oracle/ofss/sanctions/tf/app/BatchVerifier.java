@@ -0,0 +1,530 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the database checks of a whole chunk of rows with a few set-based queries instead of one query per row.
+ */
+public class BatchVerifier {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchVerifier.class);
+    private static final Pattern SQL_IDENTIFIER = Pattern.compile(Constants.SQL_IDENTIFIER_PATTERN);
+
+    // n_run_skey per request id, looked up once per batch. A request without a matched result is not kept: its
+    // result may still arrive, e.g. before the next batch in watch mode.
+    private static final Map<String, BigDecimal> runKeys = new ConcurrentHashMap<>();
+
+    private static volatile RequestJsonCache requestCache = new RequestJsonCache(Constants.DEFAULT_REQUEST_CACHE_MB * 1024L * 1024L);
+
+    // "Input to MS" check for one row: was the source input sent to matching under the webservice's rule
+    static class InputCheck {
+        final String requestId;
+        final String searchText;
+        final String sourceInput;
+        String result;
+        // set when the result is NA because the lookup failed, not because of the data
+        boolean failed;
+        // set when the lookup failed on a timeout or lost connection and may succeed if tried again
+        boolean retryable;
+
+        InputCheck(String requestId, String searchText, String sourceInput) {
+            this.requestId = requestId;
+            this.searchText = searchText;
+            this.sourceInput = sourceInput;
+        }
+    }
+
+    // "Candidates present" check for one OT row: does rt_candidates hold the n_uid with the target column populated
+    static class CandidateCheck {
+        final String requestId;
+        final String table;
+        final String nUid;
+        final String targetCol;
+        String result;
+        boolean failed;
+        boolean retryable;
+
+        CandidateCheck(String requestId, String table, String nUid, String targetCol) {
+            this.requestId = requestId;
+            this.table = table;
+            this.nUid = nUid;
+            this.targetCol = targetCol;
+        }
+    }
+
+    // c_request_json documents longer than this many characters are scanned as a stream
+    private static volatile long clobStreamThreshold = Constants.DEFAULT_CLOB_STREAM_THRESHOLD_KB * 1024L;
+
+    static void configureRequestCache(long maxBytes) {
+        requestCache = new RequestJsonCache(maxBytes);
+    }
+
+    // Forgets the run keys looked up so far, at the start of each batch or to time lookups from a cold start
+    static void resetRunKeys() {
+        runKeys.clear();
+    }
+
+    private static volatile VerificationBackend backend = new JdbcVerificationBackend();
+
+    static void configureBackend(VerificationBackend verificationBackend) {
+        backend = verificationBackend;
+    }
+
+    static VerificationBackend.Session openSession() {
+        return backend.openSession();
+    }
+
+    // Finished lookups are journaled so an interrupted run can resume without repeating them
+    private static volatile VerificationJournal journal;
+
+    static void configureJournal(VerificationJournal verificationJournal) {
+        journal = verificationJournal;
+    }
+
+    static void configureClobStreamThreshold(long chars) {
+        clobStreamThreshold = chars;
+    }
+
+    // Caps the batches querying at once, adjusted from the latencies and timeouts of the queries; null for no cap
+    private static volatile AdaptiveLimiter limiter;
+    private static volatile int maxRetries = Constants.DEFAULT_DB_RETRIES;
+    private static volatile long retryBackoffMillis = Constants.DEFAULT_DB_RETRY_BACKOFF_MS;
+
+    static void configureLimiter(AdaptiveLimiter adaptiveLimiter) {
+        limiter = adaptiveLimiter;
+    }
+
+    static void configureRetries(int retries, long backoffMillis) {
+        maxRetries = retries;
+        retryBackoffMillis = backoffMillis;
+    }
+
+    static void logCacheStats() {
+        log.info("Request JSON cache: {}", requestCache.stats());
+    }
+
+    // Resolves the checker1 lookups and then the checker2 lookups of a chunk; candidateChecks is asked for the
+    // candidate lookups once the input lookups have results. Lookups that failed on a timeout or lost connection
+    // are tried again after a jittered exponential backoff. A batch over the adaptive limit waits in the limiter's
+    // queue and one waiting out a backoff on the scheduler's timer, neither holding a thread. Completes once every
+    // lookup has its final result.
+    static CompletableFuture<Void> verify(WorkScheduler scheduler, List<InputCheck> inputChecks, Supplier<List<CandidateCheck>> candidateChecks) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        attempt(scheduler, inputChecks, candidateChecks, 0, done);
+        return done;
+    }
+
+    private static void attempt(WorkScheduler scheduler, List<InputCheck> inputChecks, Supplier<List<CandidateCheck>> candidateChecks,
+                                int retry, CompletableFuture<Void> done) {
+        AdaptiveLimiter limit = limiter;
+        // started by whichever thread makes room, so the batch itself goes back to the chunk threads
+        Runnable onPermit = () -> {
+            try {
+                scheduler.execute(() -> run(scheduler, limit, inputChecks, candidateChecks, retry, done));
+            } catch (RuntimeException e) {
+                limit.release();
+                done.completeExceptionally(e);
+            }
+        };
+        if (limit != null && !limit.acquireOrWait(onPermit)) {
+            RunMetrics.increment(RunMetrics.LIMITER_DEFERRALS);
+            return;
+        }
+        run(scheduler, limit, inputChecks, candidateChecks, retry, done);
+    }
+
+    // One attempt at the lookups, holding a permit of limit when there is one
+    private static void run(WorkScheduler scheduler, AdaptiveLimiter limit, List<InputCheck> inputChecks, Supplier<List<CandidateCheck>> candidateChecks,
+                            int retry, CompletableFuture<Void> done) {
+        try {
+            // the lookups count towards the analysis phase, time spent waiting to retry does not
+            long start = System.nanoTime();
+            List<CandidateCheck> candidates;
+            try (VerificationBackend.Session session = openSession()) {
+                checker1(session, inputChecks);
+                candidates = candidateChecks.get();
+                checker2(session, candidates);
+            } finally {
+                if (limit != null) limit.release();
+                RunMetrics.addPhase(RunMetrics.PHASE_ANALYSIS, System.nanoTime() - start);
+            }
+
+            List<InputCheck> retryInputs = new ArrayList<>();
+            for (InputCheck check : inputChecks) {
+                if (check.retryable) retryInputs.add(check);
+            }
+            List<CandidateCheck> retryCandidates = new ArrayList<>();
+            for (CandidateCheck check : candidates) {
+                if (check.retryable) retryCandidates.add(check);
+            }
+            if (retryInputs.isEmpty() && retryCandidates.isEmpty()) {
+                done.complete(null);
+                return;
+            }
+            if (retry >= maxRetries) {
+                log.error("Giving up on {} lookups after {} retries, they are reported as NA", retryInputs.size() + retryCandidates.size(), retry);
+                for (InputCheck check : retryInputs) {
+                    check.retryable = false;
+                }
+                for (CandidateCheck check : retryCandidates) {
+                    check.retryable = false;
+                }
+                countResults("checker1.", retryInputs);
+                countResults("checker2.", retryCandidates);
+                done.complete(null);
+                return;
+            }
+            for (InputCheck check : retryInputs) {
+                check.result = null;
+                check.failed = false;
+                check.retryable = false;
+            }
+            for (CandidateCheck check : retryCandidates) {
+                check.result = null;
+                check.failed = false;
+                check.retryable = false;
+            }
+            long delay = backoff(retry);
+            RunMetrics.increment(RunMetrics.DB_RETRIES);
+            log.warn("Retrying {} lookups in {} ms after a database timeout (retry {} of {})", retryInputs.size() + retryCandidates.size(), delay, retry + 1, maxRetries);
+            scheduler.schedule(() -> attempt(scheduler, inputChecks, candidateChecks, retry + 1, done), delay);
+        } catch (Throwable e) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    // Full jitter: uniform in [0, min(max, base * 2^retry)], so batches that failed together do not retry together
+    static long backoff(int retry) {
+        long ceiling = Math.min(Constants.DEFAULT_DB_RETRY_MAX_BACKOFF_MS, retryBackoffMillis << Math.min(retry, 20));
+        return jitter(ceiling);
+    }
+
+    private static long jitter(long ceiling) {
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // Whether the error is worth retrying: timeouts, lost connections and pool checkout timeouts
+    private static boolean isTransient(Exception e) {
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException;
+    }
+
+    private static void sample(long start, boolean dropped) {
+        AdaptiveLimiter limit = limiter;
+        if (limit != null) {
+            limit.onSample(System.nanoTime() - start, dropped);
+        }
+    }
+
+    // Each request's documents are fetched once and the rule and source input are matched locally,
+    // so a request id shared by many rows and by both the OS and OT checks costs a single lookup.
+    static void checker1(VerificationBackend.Session session, List<InputCheck> checks) {
+        VerificationJournal journal = BatchVerifier.journal;
+        List<InputCheck> pending = new ArrayList<>();
+        for (InputCheck check : checks) {
+            if (check.result != null) continue;
+            if (journal != null) {
+                check.result = journal.lookup(VerificationJournal.INPUT_CHECK, check.requestId, check.searchText, check.sourceInput);
+            }
+            if (check.result == null) pending.add(check);
+        }
+        resolveInputChecks(session, pending);
+        countResults("checker1.", pending);
+        if (journal != null) {
+            for (InputCheck check : pending) {
+                if (!check.failed) {
+                    journal.record(VerificationJournal.INPUT_CHECK, check.result, check.requestId, check.searchText, check.sourceInput);
+                }
+            }
+            journal.flush();
+        }
+    }
+
+    private static void resolveInputChecks(VerificationBackend.Session session, List<InputCheck> checks) {
+        // rule texts and source inputs looked for in the documents of each request
+        Map<String, Set<String>> needlesByRequestId = new LinkedHashMap<>();
+        for (InputCheck check : checks) {
+            if (check.result != null) continue;
+            Set<String> needles = needlesByRequestId.computeIfAbsent(check.requestId, k -> new HashSet<>());
+            needles.add(check.searchText);
+            needles.add(check.sourceInput);
+        }
+
+        Map<String, List<RequestJsonCache.Document>> documentsByRequestId = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> entry : needlesByRequestId.entrySet()) {
+            List<RequestJsonCache.Document> documents = requestCache.get(entry.getKey());
+            if (documents != null && covers(documents, entry.getValue())) {
+                documentsByRequestId.put(entry.getKey(), documents);
+            } else {
+                missing.add(entry.getKey());
+            }
+        }
+
+        // request ids whose lookup failed, these resolve to NA; the transient failures may be retried
+        Set<String> failed = new HashSet<>();
+        Set<String> retryable = new HashSet<>();
+        ClobScanner scanner = new ClobScanner(Constants.DEFAULT_CLOB_SCAN_BUFFER);
+        for (List<String> requestIds : partition(missing, Constants.MAX_IN_LIST_SIZE)) {
+            long start = System.nanoTime();
+            try {
+                fetchRequestJson(session, requestIds, needlesByRequestId, scanner, documentsByRequestId);
+                sample(start, false);
+            } catch (Exception e) {
+                if (isTransient(e)) {
+                    sample(start, true);
+                    RunMetrics.increment(RunMetrics.DB_TIMEOUTS);
+                    log.error("Database timeout/recoverable error in checker1: {}", e.getMessage());
+                    retryable.addAll(requestIds);
+                } else {
+                    log.error("Unexpected error in checker1: {}", e.getMessage(), e);
+                }
+                failed.addAll(requestIds);
+            }
+        }
+
+        for (InputCheck check : checks) {
+            if (check.result != null) continue;
+            if (failed.contains(check.requestId)) {
+                check.result = Constants.NA;
+                check.failed = true;
+                check.retryable = retryable.contains(check.requestId);
+                continue;
+            }
+            // like the single-row check, only the first document mentioning the rule is considered
+            RequestJsonCache.Document json = null;
+            for (RequestJsonCache.Document document : documentsByRequestId.get(check.requestId)) {
+                if (document.contains(check.searchText)) {
+                    json = document;
+                    break;
+                }
+            }
+            check.result = json != null && json.contains(check.sourceInput) ? Constants.YES : Constants.NO;
+        }
+    }
+
+    private static boolean covers(List<RequestJsonCache.Document> documents, Set<String> needles) {
+        for (RequestJsonCache.Document document : documents) {
+            if (!document.covers(needles)) return false;
+        }
+        return true;
+    }
+
+    // Documents up to the streaming threshold are read as text; larger ones are scanned through the CLOB's
+    // character stream for the needles of their request and never held on heap.
+    private static void fetchRequestJson(VerificationBackend.Session session, List<String> requestIds, Map<String, Set<String>> needlesByRequestId,
+                                         ClobScanner scanner, Map<String, List<RequestJsonCache.Document>> documentsByRequestId) throws Exception {
+        Map<String, List<RequestJsonCache.Document>> fetched = new HashMap<>();
+        for (String requestId : requestIds) {
+            fetched.put(requestId, new ArrayList<>());
+        }
+        long start = System.nanoTime();
+        session.fetchRequestDocuments(requestIds, (requestId, clob) -> {
+            List<RequestJsonCache.Document> documents = fetched.get(requestId);
+            if (documents == null) return;
+            long length = clob.length();
+            if (length <= clobStreamThreshold) {
+                documents.add(RequestJsonCache.Document.ofText(clob.getSubString(1, (int) length)));
+            } else {
+                Set<String> needles = needlesByRequestId.get(requestId);
+                try (Reader reader = clob.getCharacterStream()) {
+                    documents.add(RequestJsonCache.Document.ofScan(needles, scanner.scan(reader, needles)));
+                }
+            }
+        });
+        RunMetrics.recordLatency(RunMetrics.CHECKER1_QUERY, System.nanoTime() - start);
+        for (Map.Entry<String, List<RequestJsonCache.Document>> entry : fetched.entrySet()) {
+            documentsByRequestId.put(entry.getKey(), entry.getValue());
+            requestCache.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    static void checker2(VerificationBackend.Session session, List<CandidateCheck> checks) {
+        VerificationJournal journal = BatchVerifier.journal;
+        List<CandidateCheck> pending = new ArrayList<>();
+        for (CandidateCheck check : checks) {
+            if (check.result != null) continue;
+            if (journal != null) {
+                check.result = journal.lookup(VerificationJournal.CANDIDATE_CHECK, check.requestId, check.table, check.nUid, check.targetCol);
+            }
+            if (check.result == null) pending.add(check);
+        }
+        resolveCandidateChecks(session, pending);
+        countResults("checker2.", pending);
+        if (journal != null) {
+            for (CandidateCheck check : pending) {
+                if (!check.failed) {
+                    journal.record(VerificationJournal.CANDIDATE_CHECK, check.result, check.requestId, check.table, check.nUid, check.targetCol);
+                }
+            }
+            journal.flush();
+        }
+    }
+
+    private static void resolveCandidateChecks(VerificationBackend.Session session, List<CandidateCheck> checks) {
+        // pending checks per (watchlist table, target column)
+        Map<List<String>, List<CandidateCheck>> groups = new LinkedHashMap<>();
+        Set<String> requestIds = new LinkedHashSet<>();
+        for (CandidateCheck check : checks) {
+            if (check.result != null) continue;
+            if (!SQL_IDENTIFIER.matcher(check.targetCol).matches()) {
+                log.warn("Skipping checker2 for requestId={}: invalid target column '{}'", check.requestId, check.targetCol);
+                check.result = Constants.NA;
+                continue;
+            }
+            groups.computeIfAbsent(Arrays.asList(check.table, check.targetCol), k -> new ArrayList<>()).add(check);
+            requestIds.add(check.requestId);
+        }
+        if (groups.isEmpty()) return;
+
+        try {
+            Map<String, Optional<BigDecimal>> resolved = new HashMap<>();
+            Set<String> retryableRunKeys = resolveRunKeys(session, requestIds, resolved);
+            for (Map.Entry<List<String>, List<CandidateCheck>> group : groups.entrySet()) {
+                String table = group.getKey().get(0);
+                String targetCol = group.getKey().get(1);
+                List<CandidateCheck> resolvable = new ArrayList<>();
+                for (CandidateCheck check : group.getValue()) {
+                    Optional<BigDecimal> runKey = resolved.get(check.requestId);
+                    if (runKey == null) {
+                        check.result = Constants.NA;
+                        check.failed = true;
+                        check.retryable = retryableRunKeys.contains(check.requestId);
+                    } else if (!runKey.isPresent()) {
+                        // without a matched result the count query finds no candidates
+                        check.result = Constants.NO;
+                    } else {
+                        resolvable.add(check);
+                    }
+                }
+                for (List<CandidateCheck> part : partition(resolvable, Constants.MAX_IN_LIST_SIZE)) {
+                    long start = System.nanoTime();
+                    try {
+                        countCandidates(session, table, targetCol, part, resolved);
+                        sample(start, false);
+                    } catch (Exception e) {
+                        if (isTransient(e)) {
+                            sample(start, true);
+                            RunMetrics.increment(RunMetrics.DB_TIMEOUTS);
+                            log.error("Database timeout/recoverable error in checker2: {}", e.getMessage());
+                            for (CandidateCheck check : part) {
+                                check.retryable = true;
+                            }
+                        } else {
+                            log.error("Unexpected error in checker2: {}", e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("Unexpected error in checker2: {}", e.getMessage(), e);
+        }
+
+        for (CandidateCheck check : checks) {
+            if (check.result == null) {
+                check.result = Constants.NA;
+                check.failed = true;
+            }
+        }
+    }
+
+    // Fills resolved with the n_run_skey of each request id, empty when it has no matched result. Returns the
+    // request ids left unresolved by a timeout or lost connection.
+    private static Set<String> resolveRunKeys(VerificationBackend.Session session, Set<String> requestIds, Map<String, Optional<BigDecimal>> resolved) {
+        Set<String> retryable = new HashSet<>();
+        List<String> missing = new ArrayList<>();
+        for (String requestId : requestIds) {
+            BigDecimal runKey = runKeys.get(requestId);
+            if (runKey != null) {
+                resolved.put(requestId, Optional.of(runKey));
+            } else {
+                missing.add(requestId);
+            }
+        }
+        for (List<String> part : partition(missing, Constants.MAX_IN_LIST_SIZE)) {
+            long start = System.nanoTime();
+            try {
+                Map<String, BigDecimal> found = session.fetchRunKeys(part);
+                RunMetrics.recordLatency(RunMetrics.RUN_KEY_QUERY, System.nanoTime() - start);
+                sample(start, false);
+                if (runKeys.size() >= Constants.MAX_RUN_KEYS) {
+                    runKeys.clear();
+                }
+                for (String requestId : part) {
+                    BigDecimal runKey = found.get(requestId);
+                    resolved.put(requestId, Optional.ofNullable(runKey));
+                    if (runKey != null) {
+                        runKeys.put(requestId, runKey);
+                    }
+                }
+            } catch (Exception e) {
+                // left unresolved, the affected checks become NA unless a retry or a later batch resolves them
+                if (isTransient(e)) {
+                    sample(start, true);
+                    RunMetrics.increment(RunMetrics.DB_TIMEOUTS);
+                    log.error("Database timeout/recoverable error resolving n_run_skey: {}", e.getMessage());
+                    retryable.addAll(part);
+                } else {
+                    log.error("Unexpected error resolving n_run_skey: {}", e.getMessage(), e);
+                }
+            }
+        }
+        return retryable;
+    }
+
+    // One grouped lookup for all checks sharing a watchlist table and target column
+    private static void countCandidates(VerificationBackend.Session session, String table, String targetCol, List<CandidateCheck> checks,
+                                        Map<String, Optional<BigDecimal>> resolved) throws Exception {
+        List<BigDecimal> keys = new ArrayList<>(checks.size());
+        List<String> nUids = new ArrayList<>(checks.size());
+        for (CandidateCheck check : checks) {
+            keys.add(resolved.get(check.requestId).get());
+            nUids.add(check.nUid);
+        }
+        long start = System.nanoTime();
+        boolean[] present = session.candidatesPresent(table, targetCol, keys, nUids);
+        RunMetrics.recordLatency(RunMetrics.CHECKER2_QUERY, System.nanoTime() - start);
+        for (int i = 0; i < checks.size(); i++) {
+            checks.get(i).result = present[i] ? Constants.YES : Constants.NO;
+        }
+    }
+
+    // Result counts of the checks resolved against the backend, e.g. checker1.YES, plus the failed lookups.
+    // Lookups awaiting a retry are counted once they have their final result.
+    private static void countResults(String prefix, List<?> checks) {
+        for (Object o : checks) {
+            String result;
+            boolean failed;
+            if (o instanceof InputCheck) {
+                if (((InputCheck) o).retryable) continue;
+                result = ((InputCheck) o).result;
+                failed = ((InputCheck) o).failed;
+            } else {
+                if (((CandidateCheck) o).retryable) continue;
+                result = ((CandidateCheck) o).result;
+                failed = ((CandidateCheck) o).failed;
+            }
+            RunMetrics.increment(prefix + result);
+            if (failed) RunMetrics.increment(RunMetrics.LOOKUP_FAILURES);
+        }
+    }
+
+    static <T> List<List<T>> partition(List<T> values, int size) {
+        List<List<T>> parts = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += size) {
+            parts.add(values.subList(i, Math.min(i + size, values.size())));
+        }
+        return parts;
+    }
+}
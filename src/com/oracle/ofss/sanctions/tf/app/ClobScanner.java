@@ -0,0 +1,78 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Looks for a set of needles in a character stream without materializing it. The stream is read into a
+ * reusable buffer; the last {@code longest needle - 1} characters of each read are carried over to the next
+ * one so matches that straddle two reads are still found. Reading stops once every needle has been seen.
+ */
+public class ClobScanner {
+
+    private char[] buffer;
+
+    public ClobScanner(int bufferSize) {
+        this.buffer = new char[bufferSize];
+    }
+
+    public Set<String> scan(Reader reader, Collection<String> needles) throws IOException {
+        Set<String> found = new HashSet<>();
+        List<char[]> pending = new ArrayList<>();
+        int longest = 0;
+        for (String needle : needles) {
+            if (needle.isEmpty()) {
+                found.add(needle);
+            } else if (!found.contains(needle)) {
+                pending.add(needle.toCharArray());
+                longest = Math.max(longest, needle.length());
+            }
+        }
+        if (pending.isEmpty()) return found;
+
+        int carry = longest - 1;
+        if (buffer.length < 2 * longest) {
+            buffer = new char[2 * longest];
+        }
+        int length = 0;
+        int n;
+        while ((n = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                char[] needle = pending.get(i);
+                if (indexOf(buffer, length, needle) >= 0) {
+                    found.add(new String(needle));
+                    pending.remove(i);
+                }
+            }
+            if (pending.isEmpty()) break;
+            // keep the tail that could start a match completed by the next read
+            int keep = Math.min(carry, length);
+            System.arraycopy(buffer, length - keep, buffer, 0, keep);
+            length = keep;
+        }
+        return found;
+    }
+
+    static int indexOf(char[] source, int length, char[] needle) {
+        char first = needle[0];
+        int max = length - needle.length;
+        for (int i = 0; i <= max; i++) {
+            if (source[i] != first) {
+                while (++i <= max && source[i] != first) ;
+            }
+            if (i <= max) {
+                int j = i + 1;
+                int end = i + needle.length;
+                for (int k = 1; j < end && source[j] == needle[k]; j++, k++) ;
+                if (j == end) return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,136 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column positions of one input file, compiled once from its header row so the per-row work is plain array
+ * indexing. Absent columns have index -1 and read as "".
+ */
+public class ColumnPlan {
+
+    // markers in an output projection for the columns computed by the analysis
+    static final int INPUT_TO_MS = -2;
+    static final int CANDIDATES_PRESENT = -3;
+    static final int COMMENT = -4;
+
+    final int osStatus;
+    final int otStatus;
+    final int osTransactionToken;
+    final int otTransactionToken;
+    final int sourceInput;
+    final int nUid;
+    final int watchlist;
+    final int targetColumn;
+
+    // "Message <type>" columns and the request id suffix of their message type
+    final int[] messageColumns;
+    final int[] messageSuffixes;
+
+    // "<type> # <webservice> matches" columns and the rule text of their webservice
+    final int[] osWebserviceColumns;
+    final String[] osSearchTexts;
+    final int[] otWebserviceColumns;
+    final String[] otSearchTexts;
+
+    final int[] osProjection;
+    final int[] otProjection;
+    final int[] allProjection;
+
+    // The column scans follow the iteration order of colIndices, as the per-row lookups did
+    ColumnPlan(Map<String, Integer> colIndices, List<String> osHeaders, List<String> otHeaders, List<String> allHeaders) {
+        osStatus = index(colIndices, Constants.OS_TEST_STATUS);
+        otStatus = index(colIndices, Constants.OT_TEST_STATUS);
+        osTransactionToken = index(colIndices, "OS" + Constants.TRANSACTION_TOKEN_SUFFIX);
+        otTransactionToken = index(colIndices, "OT" + Constants.TRANSACTION_TOKEN_SUFFIX);
+        sourceInput = index(colIndices, Constants.SOURCE_INPUT);
+        nUid = index(colIndices, Constants.N_UID);
+        watchlist = index(colIndices, Constants.WATCHLIST);
+        targetColumn = index(colIndices, Constants.TARGET_COLUMN);
+
+        List<Integer> messages = new ArrayList<>();
+        List<Integer> suffixes = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : colIndices.entrySet()) {
+            String col = entry.getKey();
+            if (col.startsWith(Constants.MESSAGE_PREFIX)) {
+                messages.add(entry.getValue());
+                suffixes.add(messageSuffix(col.substring(Constants.MESSAGE_PREFIX.length()).trim()));
+            }
+        }
+        messageColumns = toArray(messages);
+        messageSuffixes = toArray(suffixes);
+
+        List<Integer> osColumns = new ArrayList<>();
+        List<String> osTexts = new ArrayList<>();
+        webserviceColumns(colIndices, "OS", osColumns, osTexts);
+        osWebserviceColumns = toArray(osColumns);
+        osSearchTexts = osTexts.toArray(new String[0]);
+        List<Integer> otColumns = new ArrayList<>();
+        List<String> otTexts = new ArrayList<>();
+        webserviceColumns(colIndices, "OT", otColumns, otTexts);
+        otWebserviceColumns = toArray(otColumns);
+        otSearchTexts = otTexts.toArray(new String[0]);
+
+        osProjection = project(colIndices, osHeaders, Constants.INPUT_TO_MS, Constants.COMMENT);
+        otProjection = project(colIndices, otHeaders, Constants.INPUT_TO_MS, Constants.CANDIDATES_PRESENT, Constants.COMMENT);
+        allProjection = project(colIndices, allHeaders);
+    }
+
+    static String value(String[] row, int index) {
+        if (index < 0 || index >= row.length) return "";
+        return row[index];
+    }
+
+    private static int index(Map<String, Integer> colIndices, String column) {
+        Integer index = colIndices.get(column);
+        return index == null ? -1 : index;
+    }
+
+    private static int messageSuffix(String messageType) {
+        if (Constants.SWIFT.equals(messageType)) return 1;
+        if (Constants.FEDWIRE.equals(messageType)) return 2;
+        if (Constants.ISO20022.equals(messageType)) return 3;
+        return 0;
+    }
+
+    private static void webserviceColumns(Map<String, Integer> colIndices, String type, List<Integer> columns, List<String> searchTexts) {
+        String prefix = type + Constants.WEBSERVICE_PREFIX;
+        String suffix = Constants.MATCHES_SUFFIX;
+        for (Map.Entry<String, Integer> entry : colIndices.entrySet()) {
+            String col = entry.getKey();
+            if (col.startsWith(prefix) && col.endsWith(suffix)) {
+                columns.add(entry.getValue());
+                searchTexts.add(ExcelProcessor.getSearchText(col.substring(prefix.length(), col.length() - suffix.length())));
+            }
+        }
+    }
+
+    // Input column index per output header; the computed headers get their marker instead
+    private static int[] project(Map<String, Integer> colIndices, List<String> headers, String... computed) {
+        List<String> computedHeaders = Arrays.asList(computed);
+        int[] projection = new int[headers.size()];
+        for (int i = 0; i < projection.length; i++) {
+            String header = headers.get(i);
+            if (!computedHeaders.contains(header)) {
+                projection[i] = index(colIndices, header);
+            } else if (Constants.INPUT_TO_MS.equals(header)) {
+                projection[i] = INPUT_TO_MS;
+            } else if (Constants.CANDIDATES_PRESENT.equals(header)) {
+                projection[i] = CANDIDATES_PRESENT;
+            } else {
+                projection[i] = COMMENT;
+            }
+        }
+        return projection;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
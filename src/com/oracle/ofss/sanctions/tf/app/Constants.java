@@ -16,8 +16,13 @@ public class Constants {
     public static final String SHEET_OS = "Open Search Analysis";
     public static final String SHEET_OT = "Oracle Text Analysis";
     public static final String OUTPUT_PREFIX = "Issues_";
+    public static final String PREVIEW_PREFIX = "Issues_Preview_";
+    public static final String SHEET_PREVIEW = "Issue Estimates";
+    public static final String SHEET_PREVIEW_STRATA = "Sample Strata";
     public static final String DATE_FORMAT = "ddMMyy_HHmmss";
     public static final String EXTENSION = ".xlsx";
+    public static final String CSV_EXTENSION = ".csv";
+    public static final String NDJSON_EXTENSION = ".ndjson";
     public static final String PROP_INPUT_DIR = "inputDirectory";
     public static final String PROP_OUTPUT_DIR = "outputDirectory";
     public static final String PROP_THREAD_POOL_SIZE = "threads";
@@ -26,6 +31,39 @@ public class Constants {
     public static final String PROP_OS_STATUS_FILTER = "osStatusFilter";
     public static final String PROP_OT_STATUS_FILTER = "otStatusFilter";
     public static final String PROP_FILTERS = "filters";
+    public static final String PROP_STREAMING_READER = "streamingReader";
+    public static final String PROP_OUTPUT_ROW_WINDOW = "outputRowWindow";
+    public static final String PROP_OUTPUT_FORMAT = "outputFormat";
+    public static final String PROP_OUTPUT_SHARD_ROWS = "outputShardRows";
+    public static final String PROP_OUTPUT_SHARD_MB = "outputShardMb";
+    public static final String PROP_OUTPUT_ZIP_LEVEL = "outputZipLevel";
+    public static final String PROP_VERIFICATION_BATCH_SIZE = "verificationBatchSize";
+    public static final String PROP_VIRTUAL_THREADS = "virtualThreads";
+    public static final String PROP_DB_POOL_SIZE = "dbPoolSize";
+    public static final String PROP_DB_MIN_IDLE = "dbMinIdle";
+    public static final String PROP_DB_CONNECTION_TIMEOUT_MS = "dbConnectionTimeoutMs";
+    public static final String PROP_DB_READ_TIMEOUT_MS = "dbReadTimeoutMs";
+    public static final String PROP_DB_FETCH_SIZE = "dbFetchSize";
+    public static final String PROP_DB_ADAPTIVE_LIMIT = "dbAdaptiveLimit";
+    public static final String PROP_DB_LATENCY_TARGET_MS = "dbLatencyTargetMs";
+    public static final String PROP_DB_RETRIES = "dbRetries";
+    public static final String PROP_DB_RETRY_BACKOFF_MS = "dbRetryBackoffMs";
+    public static final String PROP_REQUEST_CACHE_MB = "requestCacheMb";
+    public static final String PROP_CLOB_STREAM_THRESHOLD_KB = "clobStreamThresholdKb";
+    public static final String PROP_INCREMENTAL = "incremental";
+    public static final String PROP_MANIFEST_DIR = "manifestDirectory";
+    public static final String PROP_VERIFICATION_JOURNAL = "verificationJournal";
+    public static final String PROP_JOURNAL_FILE = "journalFile";
+    public static final String PROP_RESUME = "resume";
+    public static final String PROP_SNAPSHOT_EXPORT = "snapshotExport";
+    public static final String PROP_VERIFICATION_SNAPSHOT = "verificationSnapshot";
+    public static final String PROP_METRICS_REPORT = "metricsReport";
+    public static final String PROP_METRICS_JMX = "metricsJmx";
+    public static final String PROP_WATCH = "watch";
+    public static final String PROP_WATCH_WINDOW_MS = "watchWindowMs";
+    public static final String PROP_PREVIEW = "preview";
+    public static final String PROP_PREVIEW_SAMPLE_SIZE = "previewSampleSize";
+    public static final String PROP_PREVIEW_SEED = "previewSeed";
     public static final String JDBC_DRIVER = "jdbcdriver";
     public static final String JDBC_URL = "jdbcurl";
     public static final String WALLET_NAME = "walletName";
@@ -60,8 +98,12 @@ public class Constants {
     public static final String COMMENT = "Comment";
 
     // Query Strings
-    public static final String CHECKER1_QUERY = "select c_request_json from FCC_MR_MATCHED_RESULT_RT WHERE N_REQUEST_ID = ? and c_request_json like ?";
-    public static final String CHECKER2_QUERY_PREFIX = "select count(*) from rt_candidates where n_run_skey = (select n_run_skey from fcc_mr_matched_result_rt where rownum=1 and n_request_id=?) and V_WATCHLIST_TYPE = ? and n_uid=? and ";
+    public static final String CHECKER1_BATCH_QUERY_PREFIX = "select N_REQUEST_ID, c_request_json from FCC_MR_MATCHED_RESULT_RT WHERE N_REQUEST_ID in (";
+    public static final String RUN_SKEY_QUERY_PREFIX = "select n_request_id, n_run_skey from fcc_mr_matched_result_rt where n_request_id in (";
+    // %1$s: CHECKER2_KEY_ROW repeated with union all, %2$s: target column
+    public static final String CHECKER2_BATCH_QUERY = "select k.key_idx, count(*) from (%1$s) k join rt_candidates c on c.n_run_skey = k.key_run_skey and c.n_uid = k.key_uid where c.V_WATCHLIST_TYPE = ? and c.%2$s is not null group by k.key_idx";
+    public static final String CHECKER2_KEY_ROW = "select cast(? as number) key_idx, cast(? as number) key_run_skey, cast(? as varchar2(4000)) key_uid from dual";
+    public static final String SQL_IDENTIFIER_PATTERN = "[A-Za-z][A-Za-z0-9_$#]*";
 
     // Rule Names (preserving spaces)
     public static final String RULE_FULL_NAME_AND_ADDRESS = "\"ruleName\":\"Full Name And Address";
@@ -89,6 +131,83 @@ public class Constants {
     public static final long DEFAULT_MAX_EXCEL_FILE_SIZE = 100L * 1024 * 1024; // 100MB
     public static final double DEFAULT_MIN_INFLATE_RATIO = 0.0d; // 0%
 
+    // Row chunks read ahead of the workers for one file, per worker thread
+    public static final int DEFAULT_CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+    // Of the configured threads, one in this many parses input files and the rest run row chunks
+    public static final int THREADS_PER_READER = 4;
+    // Row chunks read ahead for one file when chunks run on virtual threads
+    public static final int DEFAULT_VIRTUAL_CHUNKS_IN_FLIGHT = 64;
+
+    // Output rows kept in memory per sheet before they are spilled to temp files
+    public static final int DEFAULT_OUTPUT_ROW_WINDOW = 100;
+
+    // Output formats and sharding; by default a shard holds what one xlsx sheet can, header included
+    public static final String OUTPUT_FORMAT_XLSX = "xlsx";
+    public static final String OUTPUT_FORMAT_CSV = "csv";
+    public static final String OUTPUT_FORMAT_NDJSON = "ndjson";
+    public static final int XLSX_MAX_ROWS = 1048576;
+    public static final int DEFAULT_OUTPUT_SHARD_ROWS = XLSX_MAX_ROWS - 1;
+    public static final int DEFAULT_OUTPUT_SHARD_MB = 1024;
+    // Released chunks queued per output sheet ahead of its writer thread
+    public static final int DEFAULT_WRITE_QUEUE_CHUNKS = 64;
+    // Deflate level of the xlsx outputs and their temp files, 0 (stored) to 9 (smallest), -1 for the zlib default
+    public static final int DEFAULT_OUTPUT_ZIP_LEVEL = -1;
+
+    // Rows verified together by one set-based checker batch
+    public static final int DEFAULT_VERIFICATION_BATCH_SIZE = 500;
+    // Oracle accepts at most 1000 expressions in an IN-list
+    public static final int MAX_IN_LIST_SIZE = 1000;
+    public static final int MIN_IN_LIST_SIZE = 8;
+
+    // Driver-side tuning for the checker queries
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    public static final int DEFAULT_FETCH_SIZE = 500;
+    public static final int DEFAULT_LOB_PREFETCH_SIZE = 32768;
+    public static final int DEFAULT_DB_POOL_SIZE = 10;
+    public static final int DEFAULT_DB_MIN_IDLE = 5;
+    public static final int DEFAULT_DB_CONNECTION_TIMEOUT_MS = 300000; // 5 minutes
+    public static final int DEFAULT_DB_READ_TIMEOUT_MS = 60000;
+    // Adaptive limit on concurrent checker batches and the retries of lookups that timed out
+    public static final int DEFAULT_DB_LATENCY_TARGET_MS = 5000;
+    public static final double LIMIT_DECREASE_RATIO = 0.5d;
+    public static final int DEFAULT_DB_RETRIES = 3;
+    public static final int DEFAULT_DB_RETRY_BACKOFF_MS = 1000;
+    public static final int DEFAULT_DB_RETRY_MAX_BACKOFF_MS = 30000;
+    // Upper bound on the request JSON documents kept for checker1
+    public static final int DEFAULT_REQUEST_CACHE_MB = 256;
+    // Larger request JSON documents are scanned through a reader instead of being loaded as a String
+    public static final int DEFAULT_CLOB_STREAM_THRESHOLD_KB = 1024;
+    public static final int DEFAULT_CLOB_SCAN_BUFFER = 8192;
+    // Distinct values a column may dictionary-encode in a RowStore before its values are stored as they are
+    public static final int DEFAULT_DICTIONARY_MAX_CODES = 1024;
+
+    // Incremental runs
+    public static final String MANIFEST_DIR_NAME = ".manifest";
+    public static final String MANIFEST_FILE_NAME = "manifest.properties";
+    public static final String RESULTS_EXTENSION = ".results.gz";
+
+    // Verification journal
+    public static final String JOURNAL_FILE_NAME = "verification.journal";
+    // Longest time flushed journal records may stay in the OS cache before they are forced to disk
+    public static final long JOURNAL_SYNC_INTERVAL_MS = 1000;
+    public static final int MAX_JOURNAL_RECORD_BYTES = 1024 * 1024;
+
+    // Run metrics
+    public static final String METRICS_SUFFIX = ".metrics.json";
+    public static final String METRICS_MBEAN_NAME = "com.oracle.ofss.sanctions.tf.app:type=RunMetrics";
+
+    // Watch mode: files arriving within one window are processed as one batch
+    public static final int DEFAULT_WATCH_WINDOW_MS = 2000;
+    // Preview mode: failures verified per stratum, z of the 95% confidence interval, and the seed distance
+    // between the random streams of two input files
+    public static final int DEFAULT_PREVIEW_SAMPLE_SIZE = 200;
+    public static final double PREVIEW_Z = 1.96d;
+    public static final long PREVIEW_SEED_STEP = 0x9E3779B97F4A7C15L;
+    // Distinct header layouts whose column plans are kept between batches
+    public static final int MAX_COLUMN_PLANS = 64;
+    // n_run_skey values kept within a batch before the lookups start over
+    public static final int MAX_RUN_KEYS = 100_000;
+
     public static final Map<String, String> OT_TABLE_WL_MAP;
     static {
         Map<String, String> map = new HashMap<>();
@@ -2,7 +2,6 @@ package com.oracle.ofss.sanctions.tf.app;
 
 import org.apache.poi.openxml4j.util.ZipSecureFile;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,6 +9,9 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.sql.*;
@@ -21,12 +23,24 @@ public class ExcelProcessor {
     private static final Logger log = LoggerFactory.getLogger(ExcelProcessor.class);
     static List<String> osHeaders;
     static List<String> otHeaders;
-    static List<List<Object>> osData;
-    static List<List<Object>> otData;
     static List<String> allHeaders;
-    static List<List<Object>> filteredData;
     static int threadPoolSize;
+    static WorkScheduler scheduler;
+    static int outputRowWindow;
+    static String outputFormat;
+    static int outputShardRows;
+    static long outputShardBytes;
+    static int outputZipLevel;
+    static int verificationBatchSize;
+    static boolean streamingReader;
+    static boolean virtualThreads;
+    // > 0 in preview mode: failures sampled per stratum instead of a full run, see SampledPreview
+    static int previewSampleSize;
+    static long previewSeed;
+    static ResultManifest manifest;
     static Object headerLock = new Object();
+    // opened by the first input file once its header is registered, see registerHeaders
+    static CountDownLatch firstFileHeaders;
 
     public static void main(String[] args) throws Exception {
         log.info("=============================================================");
@@ -49,15 +63,37 @@ public class ExcelProcessor {
         String inputDir = config.getProperty(Constants.PROP_INPUT_DIR);
         String outputDir = config.getProperty(Constants.PROP_OUTPUT_DIR, inputDir);
         threadPoolSize = Integer.parseInt(config.getProperty(Constants.PROP_THREAD_POOL_SIZE, "4"));
+        verificationBatchSize = Integer.parseInt(config.getProperty(Constants.PROP_VERIFICATION_BATCH_SIZE, String.valueOf(Constants.DEFAULT_VERIFICATION_BATCH_SIZE)));
+        outputRowWindow = Integer.parseInt(config.getProperty(Constants.PROP_OUTPUT_ROW_WINDOW, String.valueOf(Constants.DEFAULT_OUTPUT_ROW_WINDOW)));
+        outputFormat = config.getProperty(Constants.PROP_OUTPUT_FORMAT, Constants.OUTPUT_FORMAT_XLSX).trim().toLowerCase(Locale.ROOT);
+        if (!Constants.OUTPUT_FORMAT_CSV.equals(outputFormat) && !Constants.OUTPUT_FORMAT_NDJSON.equals(outputFormat)) {
+            if (!Constants.OUTPUT_FORMAT_XLSX.equals(outputFormat)) {
+                log.warn("Unknown {} '{}', writing xlsx", Constants.PROP_OUTPUT_FORMAT, outputFormat);
+            }
+            outputFormat = Constants.OUTPUT_FORMAT_XLSX;
+        }
+        outputShardRows = Integer.parseInt(config.getProperty(Constants.PROP_OUTPUT_SHARD_ROWS, String.valueOf(Constants.DEFAULT_OUTPUT_SHARD_ROWS)));
+        outputShardBytes = Long.parseLong(config.getProperty(Constants.PROP_OUTPUT_SHARD_MB, String.valueOf(Constants.DEFAULT_OUTPUT_SHARD_MB))) * 1024L * 1024L;
+        outputZipLevel = Integer.parseInt(config.getProperty(Constants.PROP_OUTPUT_ZIP_LEVEL, String.valueOf(Constants.DEFAULT_OUTPUT_ZIP_LEVEL)));
+        if (outputZipLevel < -1 || outputZipLevel > 9) {
+            log.warn("{} must be -1 or between 0 and 9, using the default", Constants.PROP_OUTPUT_ZIP_LEVEL);
+            outputZipLevel = Constants.DEFAULT_OUTPUT_ZIP_LEVEL;
+        }
         String analysisEnabled = config.getProperty(Constants.PROP_ANALYSIS_ENABLED, "Y");
         String extractionEnabled = config.getProperty(Constants.PROP_EXTRACTION_ENABLED, "N");
         String osStatusFilter = config.getProperty(Constants.PROP_OS_STATUS_FILTER, "PASS");
         String otStatusFilter = config.getProperty(Constants.PROP_OT_STATUS_FILTER, "FAIL");
         String filters = config.getProperty(Constants.PROP_FILTERS, "");
-
-        // Generate output filename
-        SimpleDateFormat sdf = new SimpleDateFormat(Constants.DATE_FORMAT);
-        String timestamp = sdf.format(new Date());
+        streamingReader = "Y".equalsIgnoreCase(config.getProperty(Constants.PROP_STREAMING_READER, "N"));
+        virtualThreads = "Y".equalsIgnoreCase(config.getProperty(Constants.PROP_VIRTUAL_THREADS, "N"));
+        BatchVerifier.configureRequestCache(Long.parseLong(config.getProperty(Constants.PROP_REQUEST_CACHE_MB, String.valueOf(Constants.DEFAULT_REQUEST_CACHE_MB))) * 1024L * 1024L);
+        BatchVerifier.configureClobStreamThreshold(Long.parseLong(config.getProperty(Constants.PROP_CLOB_STREAM_THRESHOLD_KB, String.valueOf(Constants.DEFAULT_CLOB_STREAM_THRESHOLD_KB))) * 1024L);
+        BatchVerifier.configureRetries(Integer.parseInt(config.getProperty(Constants.PROP_DB_RETRIES, String.valueOf(Constants.DEFAULT_DB_RETRIES))),
+                Long.parseLong(config.getProperty(Constants.PROP_DB_RETRY_BACKOFF_MS, String.valueOf(Constants.DEFAULT_DB_RETRY_BACKOFF_MS))));
+        boolean adaptiveLimit = "Y".equalsIgnoreCase(config.getProperty(Constants.PROP_DB_ADAPTIVE_LIMIT, "Y"));
+        long latencyTargetMs = Long.parseLong(config.getProperty(Constants.PROP_DB_LATENCY_TARGET_MS, String.valueOf(Constants.DEFAULT_DB_LATENCY_TARGET_MS)));
+        boolean watch = "Y".equalsIgnoreCase(config.getProperty(Constants.PROP_WATCH, "N"));
+        long watchWindowMs = Long.parseLong(config.getProperty(Constants.PROP_WATCH_WINDOW_MS, String.valueOf(Constants.DEFAULT_WATCH_WINDOW_MS)));
 
         // Ensure output directory exists
         try {
@@ -68,55 +104,78 @@ public class ExcelProcessor {
         }
 
 
-        // init
-        osHeaders = new ArrayList<>();
-        otHeaders = new ArrayList<>();
-        osData = Collections.synchronizedList(new ArrayList<>());
-        otData = Collections.synchronizedList(new ArrayList<>());
+        // Incremental runs reuse the stored results of input files that have not changed
+        if ("Y".equalsIgnoreCase(config.getProperty(Constants.PROP_INCREMENTAL, "N"))) {
+            String manifestDir = config.getProperty(Constants.PROP_MANIFEST_DIR, outputDir + File.separator + Constants.MANIFEST_DIR_NAME);
+            try {
+                manifest = ResultManifest.load(Paths.get(manifestDir));
+            } catch (IOException e) {
+                log.error("Error loading result manifest, processing all files: {}", e.getMessage());
+            }
+        }
 
-        // Collect input files
-        List<Path> files = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(inputDir), "*.xlsx")) {
-            for (Path filePath : stream) {
-                files.add(filePath);
+        // Checker results are journaled as they finish; resume=Y skips the lookups an earlier run already made
+        VerificationJournal journal = null;
+        if ("Y".equalsIgnoreCase(config.getProperty(Constants.PROP_VERIFICATION_JOURNAL, "N"))) {
+            String journalFile = config.getProperty(Constants.PROP_JOURNAL_FILE, outputDir + File.separator + Constants.JOURNAL_FILE_NAME);
+            boolean resume = "Y".equalsIgnoreCase(config.getProperty(Constants.PROP_RESUME, "N"));
+            try {
+                journal = VerificationJournal.open(Paths.get(journalFile), resume);
+                BatchVerifier.configureJournal(journal);
+            } catch (IOException e) {
+                log.error("Error opening verification journal, continuing without it: {}", e.getMessage());
             }
-        } catch (IOException e) {
-            System.err.println("Error processing input directory: " + e.getMessage());
-            return;
         }
 
-        // Process input files concurrently
-        if("Y".equalsIgnoreCase(analysisEnabled)) {
-            ExecutorService fileExecutor = Executors.newFixedThreadPool(threadPoolSize);
-            List<Future<Void>> fileFutures = new ArrayList<>();
-            for (Path filePath : files) {
-                fileFutures.add(fileExecutor.submit(() -> {
-                    try {
-                        processFile(filePath);
-                    } catch (Exception e) {
-                        System.err.println("Error processing file " + filePath + ": " + e.getMessage());
-                    }
-                    return null;
-                }));
+        // verificationSnapshot answers the checker lookups offline from an exported snapshot; snapshotExport
+        // queries the database as usual and exports every answer for later runs over the same input files
+        String snapshotFile = config.getProperty(Constants.PROP_VERIFICATION_SNAPSHOT, "").trim();
+        String snapshotExportFile = config.getProperty(Constants.PROP_SNAPSHOT_EXPORT, "").trim();
+        VerificationSnapshot snapshot = null;
+        VerificationSnapshot.Writer snapshotExport = null;
+        if (!snapshotFile.isEmpty()) {
+            try {
+                snapshot = VerificationSnapshot.open(Paths.get(snapshotFile));
+                BatchVerifier.configureBackend(new SnapshotVerificationBackend(snapshot));
+            } catch (IOException e) {
+                System.err.println("Error opening verification snapshot: " + e.getMessage());
+                return;
             }
-            for (Future<Void> f : fileFutures) {
-                try {
-                    f.get();
-                } catch (Exception e) {
-                    log.error("Error in file processing future: {}", e.getMessage());
-                }
+        } else if (!snapshotExportFile.isEmpty()) {
+            try {
+                snapshotExport = VerificationSnapshot.create(Paths.get(snapshotExportFile));
+                BatchVerifier.configureBackend(new RecordingVerificationBackend(new JdbcVerificationBackend(), snapshotExport));
+            } catch (IOException e) {
+                log.error("Error creating verification snapshot, continuing without export: {}", e.getMessage());
             }
-            fileExecutor.shutdown();
+        }
 
-            String outputFile = outputDir + File.separator + Constants.OUTPUT_PREFIX + timestamp + Constants.EXTENSION;
+        boolean metricsReport = "Y".equalsIgnoreCase(config.getProperty(Constants.PROP_METRICS_REPORT, "Y"));
+        if ("Y".equalsIgnoreCase(config.getProperty(Constants.PROP_METRICS_JMX, "N"))) {
+            RunMetrics.registerMBean();
+        }
 
-            // Write output
-            writeOutput(outputFile);
-            System.out.println("Output written to: " + outputFile);
+        // Collect input files
+        List<Path> files = listInputFiles(Paths.get(inputDir));
+        if (files == null) {
+            return;
         }
 
-        if ("Y".equalsIgnoreCase(extractionEnabled)) {
-            List<String[]> filterList = new ArrayList<>();
+        boolean analysis = "Y".equalsIgnoreCase(analysisEnabled);
+        boolean extraction = "Y".equalsIgnoreCase(extractionEnabled);
+        if ("Y".equalsIgnoreCase(config.getProperty(Constants.PROP_PREVIEW, "N"))) {
+            if (analysis) {
+                previewSampleSize = Integer.parseInt(config.getProperty(Constants.PROP_PREVIEW_SAMPLE_SIZE, String.valueOf(Constants.DEFAULT_PREVIEW_SAMPLE_SIZE)));
+                String seed = config.getProperty(Constants.PROP_PREVIEW_SEED);
+                previewSeed = seed != null ? Long.parseLong(seed.trim()) : System.nanoTime();
+                log.info("Preview mode: sampling up to {} failures per file, watchlist and sheet (seed {})", previewSampleSize, previewSeed);
+            } else {
+                log.warn("{} needs {}=Y, running without preview", Constants.PROP_PREVIEW, Constants.PROP_ANALYSIS_ENABLED);
+            }
+        }
+
+        List<String[]> filterList = new ArrayList<>();
+        if (extraction) {
             if (!filters.isEmpty()) {
                 // Parse filters: OS:PASS,OT:FAIL;OS:FAIL,OT:PASS
                 String[] filterGroups = filters.split(";");
@@ -132,14 +191,58 @@ public class ExcelProcessor {
                 // Fallback to individual properties
                 filterList.add(new String[]{osStatusFilter, otStatusFilter});
             }
+        }
+        if (previewSampleSize > 0 && !filterList.isEmpty()) {
+            log.warn("Preview mode only writes the preview, the {} filter outputs are skipped; set {}=N to extract them",
+                    filterList.size(), Constants.PROP_PREVIEW);
+        }
 
-            for (String[] filter : filterList) {
-                String osFilter = filter[0];
-                String otFilter = filter[1];
-                processFilteredExtraction(files, osFilter, otFilter);
-                String filteredOutputFile = outputDir + File.separator + "OS " + osFilter + " OT " + otFilter + " " + timestamp + Constants.EXTENSION;
-                writeFilteredOutput(filteredOutputFile, osFilter, otFilter);
-                System.out.println("Filtered output written to: " + filteredOutputFile);
+        // Analysis and all filter groups share a single pass over each input file
+        String timestamp = null;
+        if (analysis || extraction) {
+            // the scheduler, the connection pool and the caches stay warm across the batches of a watch-mode run
+            try (WorkScheduler workScheduler = new WorkScheduler(threadPoolSize, virtualThreads)) {
+                scheduler = workScheduler;
+                if (analysis && scheduler.isVirtual()) {
+                    // checker batches may outnumber connections by far, keep them waiting outside the pool
+                    SQLUtility.limitConcurrentSessions(SQLUtility.getMaximumPoolSize());
+                }
+                if (analysis && adaptiveLimit) {
+                    // starts at the pool size and backs off while the database is slow or timing out
+                    BatchVerifier.configureLimiter(new AdaptiveLimiter(1, SQLUtility.getMaximumPoolSize(), latencyTargetMs));
+                }
+                if (!watch) {
+                    timestamp = runBatch(files, files, outputDir, analysis, filterList);
+                } else {
+                    Map<Path, String> processed = new HashMap<>();
+                    watchInputDirectory(Paths.get(inputDir), watchWindowMs, files, processed, batch -> {
+                        RunMetrics.reset();
+                        List<Path> inputs = listInputFiles(Paths.get(inputDir));
+                        String batchTimestamp = runBatch(batch, inputs != null ? inputs : batch, outputDir, analysis, filterList);
+                        RunMetrics.logSummary();
+                        if (metricsReport) {
+                            RunMetrics.writeReport(Paths.get(outputDir, Constants.OUTPUT_PREFIX + batchTimestamp + Constants.METRICS_SUFFIX));
+                        }
+                        return batchOutputs(batchTimestamp, outputDir, analysis, filterList);
+                    });
+                }
+            }
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    log.error("Error closing verification journal: {}", e.getMessage());
+                }
+            }
+            if (snapshotExport != null) {
+                try {
+                    snapshotExport.close();
+                } catch (IOException e) {
+                    log.error("Error writing verification snapshot: {}", e.getMessage());
+                }
+            }
+            if (snapshot != null) {
+                snapshot.close();
             }
         }
 
@@ -148,26 +251,456 @@ public class ExcelProcessor {
         log.info("=============================================================");
         long executionEndMillis = System.currentTimeMillis();
         log.info("Total time taken by utility: {} seconds", (executionEndMillis - executionStartMillis) / 1000L);
+        if (!watch) {
+            if (timestamp == null) {
+                timestamp = batchTimestamp();
+            }
+            RunMetrics.logSummary();
+            if (metricsReport) {
+                RunMetrics.writeReport(Paths.get(outputDir, Constants.OUTPUT_PREFIX + timestamp + Constants.METRICS_SUFFIX));
+            }
+        }
+    }
+
+    // The *.xlsx files of the input directory in name order, or null when it cannot be read
+    static List<Path> listInputFiles(Path inputDir) {
+        long scanStart = System.nanoTime();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDir, "*.xlsx")) {
+            for (Path filePath : stream) {
+                files.add(filePath);
+            }
+        } catch (IOException e) {
+            System.err.println("Error processing input directory: " + e.getMessage());
+            return null;
+        }
+        // directory listing order depends on the filesystem, the outputs follow the sorted file names
+        Collections.sort(files);
+        RunMetrics.addPhase(RunMetrics.PHASE_DIRECTORY_SCAN, System.nanoTime() - scanStart);
+        return files;
+    }
+
+    private static String lastTimestamp;
+    private static int timestampRepeats;
+
+    // Output files are named after the batch start; batches within the same second get a counter
+    static synchronized String batchTimestamp() {
+        String timestamp = new SimpleDateFormat(Constants.DATE_FORMAT).format(new Date());
+        if (timestamp.equals(lastTimestamp)) {
+            return timestamp + "_" + (++timestampRepeats);
+        }
+        lastTimestamp = timestamp;
+        timestampRepeats = 0;
+        return timestamp;
+    }
+
+    // Processes one batch of input files into a fresh set of outputs and returns the timestamp naming them.
+    // inputs are all the files currently in the input directory, the manifest keeps their stored results.
+    static String runBatch(List<Path> files, List<Path> inputs, String outputDir, boolean analysis, List<String[]> filterList) {
+        String timestamp = batchTimestamp();
+        // results matched since the last batch get their n_run_skey looked up again
+        BatchVerifier.resetRunKeys();
+        if (previewSampleSize > 0) {
+            // a preview only estimates the analysis: no other outputs (warned about at startup), the manifest is left as it is
+            SampledPreview.run(files, outputDir + File.separator + Constants.PREVIEW_PREFIX + timestamp + outputExtension(), previewSampleSize, previewSeed);
+            BatchVerifier.logCacheStats();
+            return timestamp;
+        }
+        String outputFile = outputDir + File.separator + Constants.OUTPUT_PREFIX + timestamp + outputExtension();
+        List<FilterOutput> filterOutputs = new ArrayList<>();
+        for (String[] filter : filterList) {
+            String osFilter = filter[0];
+            String otFilter = filter[1];
+            String filteredOutputFile = outputDir + File.separator + "OS " + osFilter + " OT " + otFilter + " " + timestamp + outputExtension();
+            filterOutputs.add(new FilterOutput(osFilter, otFilter, filteredOutputFile));
+        }
+
+        // init
+        osHeaders = new ArrayList<>();
+        otHeaders = new ArrayList<>();
+
+        processFiles(files, analysis ? outputFile : null, filterOutputs);
+        if (manifest != null) {
+            try {
+                manifest.save(inputs);
+            } catch (IOException e) {
+                log.error("Error saving result manifest: {}", e.getMessage());
+            }
+        }
+        if (analysis) {
+            BatchVerifier.logCacheStats();
+        }
+        return timestamp;
+    }
+
+    // The xlsx files a batch wrote, which must not come back as inputs when the output directory is watched
+    private static List<Path> batchOutputs(String timestamp, String outputDir, boolean analysis, List<String[]> filterList) {
+        List<Path> outputs = new ArrayList<>();
+        if (!Constants.OUTPUT_FORMAT_XLSX.equals(outputFormat)) return outputs;
+        if (previewSampleSize > 0) {
+            outputs.add(Paths.get(outputDir, Constants.PREVIEW_PREFIX + timestamp + Constants.EXTENSION));
+            return outputs;
+        }
+        if (analysis) {
+            outputs.add(Paths.get(outputDir, Constants.OUTPUT_PREFIX + timestamp + Constants.EXTENSION));
+        }
+        for (String[] filter : filterList) {
+            outputs.add(Paths.get(outputDir, "OS " + filter[0] + " OT " + filter[1] + " " + timestamp + Constants.EXTENSION));
+        }
+        return outputs;
+    }
+
+    // Processes one arrival window and returns the files it wrote
+    interface BatchRunner {
+        List<Path> run(List<Path> files) throws Exception;
+    }
+
+    // Watch mode: processes the files already present, then every *.xlsx file that arrives, one batch per window.
+    // A window opens with the first arrival and closes watchWindowMs later; files still being written then
+    // (size or modification time changed since their last event) wait for the next window. A file is processed
+    // again only when it changes. Runs until the JVM is asked to stop, finishing the batch in progress first.
+    static void watchInputDirectory(Path inputDir, long windowMillis, List<Path> initialFiles, Map<Path, String> processed, BatchRunner runner) throws Exception {
+        WatchService watcher = inputDir.getFileSystem().newWatchService();
+        inputDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread mainThread = Thread.currentThread();
+        AtomicBoolean stopping = new AtomicBoolean();
+        Thread shutdownHook = new Thread(() -> {
+            log.info("Stopping watch on {}", inputDir);
+            stopping.set(true);
+            try {
+                watcher.close();
+                mainThread.join();
+            } catch (Exception e) {
+                // shutting down anyway
+            }
+        }, "issues-listing-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        PathMatcher inputs = inputDir.getFileSystem().getPathMatcher("glob:*.xlsx");
+        Map<Path, String> pending = new LinkedHashMap<>();
+        try {
+            for (Path file : initialFiles) {
+                pending.put(file, fileSignature(file));
+            }
+            runReady(pending, processed, runner);
+            log.info("Watching {} for new input files", inputDir);
+            long windowEnd = 0;
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watcher.take();
+                } else {
+                    key = watcher.poll(Math.max(1, windowEnd - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (key != null) {
+                    boolean opensWindow = pending.isEmpty();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // events were lost, the directory listing tells what is there
+                            List<Path> files = listInputFiles(inputDir);
+                            if (files != null) {
+                                for (Path file : files) {
+                                    arrived(file, pending, processed);
+                                }
+                            }
+                        } else if (inputs.matches((Path) event.context())) {
+                            arrived(inputDir.resolve((Path) event.context()), pending, processed);
+                        }
+                    }
+                    if (!key.reset()) {
+                        if (stopping.get()) return;
+                        log.error("Input directory {} is no longer accessible, stopping watch", inputDir);
+                        return;
+                    }
+                    if (opensWindow && !pending.isEmpty()) {
+                        windowEnd = System.currentTimeMillis() + windowMillis;
+                    }
+                }
+                if (!pending.isEmpty() && System.currentTimeMillis() >= windowEnd) {
+                    runReady(pending, processed, runner);
+                    windowEnd = System.currentTimeMillis() + windowMillis;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.info("Watch on {} stopped", inputDir);
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+            watcher.close();
+        }
+    }
+
+    private static void arrived(Path file, Map<Path, String> pending, Map<Path, String> processed) {
+        String signature = fileSignature(file);
+        if (signature == null || signature.equals(processed.get(file))) {
+            pending.remove(file);
+        } else {
+            pending.put(file, signature);
+        }
+    }
+
+    // Runs the pending files that have not changed since they were last seen, the others stay pending
+    private static void runReady(Map<Path, String> pending, Map<Path, String> processed, BatchRunner runner) throws Exception {
+        List<Path> ready = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, String>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, String> entry = it.next();
+            String signature = fileSignature(entry.getKey());
+            if (signature == null) {
+                it.remove();
+            } else if (signature.equals(entry.getValue())) {
+                ready.add(entry.getKey());
+                processed.put(entry.getKey(), signature);
+                it.remove();
+            } else {
+                entry.setValue(signature);
+            }
+        }
+        if (ready.isEmpty()) return;
+        Collections.sort(ready);
+        log.info("Processing {} input file(s): {}", ready.size(), ready);
+        try {
+            for (Path output : runner.run(ready)) {
+                String signature = fileSignature(output);
+                if (signature != null) {
+                    processed.put(output, signature);
+                }
+            }
+        } catch (Exception e) {
+            // the files count as processed, they are retried once they change
+            log.error("Error processing input files {}: {}", ready, e.getMessage(), e);
+        }
+    }
+
+    // Size and modification time, or null when the file is gone
+    private static String fileSignature(Path file) {
+        try {
+            return Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Opens the analysis report (when analysisOutputFile is set) and the filter workbooks, then reads every input once
+    static void processFiles(List<Path> files, String analysisOutputFile, List<FilterOutput> filterOutputs) {
+        allHeaders = new ArrayList<>();
+        firstFileHeaders = new CountDownLatch(1);
+        // Rows are written to the outputs in input order as each file produces them
+        OutputSink report = analysisOutputFile == null ? null : openSink(analysisOutputFile);
+        Map<String, OutputSink> sheetWriters = new HashMap<>();
+        Set<OutputSink> failedSinks = new HashSet<>();
+        try {
+            if (report != null) {
+                report.addSheet(Constants.SHEET_OS, osHeaders);
+                report.addSheet(Constants.SHEET_OT, otHeaders);
+                sheetWriters.put(Constants.SHEET_OS, report);
+                sheetWriters.put(Constants.SHEET_OT, report);
+            }
+            for (FilterOutput filterOutput : filterOutputs) {
+                filterOutput.writer = openSink(filterOutput.outputFile);
+                filterOutput.writer.addSheet(filterOutput.sheetName, allHeaders);
+                sheetWriters.put(filterOutput.sheetName, filterOutput.writer);
+            }
+            OrderedOutput output = new OrderedOutput(files.size(), sheetWriters);
+            try {
+                List<Integer> indices = new ArrayList<>();
+                for (int i = 0; i < files.size(); i++) {
+                    indices.add(i);
+                }
+                scheduler.runAll(indices, index -> {
+                    Path filePath = files.get(index);
+                    OrderedOutput.FileOutput out = output.file(index);
+                    try {
+                        processFile(filePath, out, report, filterOutputs);
+                    } catch (Exception e) {
+                        System.err.println("Error processing file " + filePath + ": " + e.getMessage());
+                    } finally {
+                        out.finish();
+                    }
+                });
+            } finally {
+                try {
+                    output.close();
+                } catch (RuntimeException e) {
+                    failedSinks.addAll(output.failedWriters());
+                    System.err.println("Error writing output: " + e.getMessage());
+                }
+            }
+        } finally {
+            // each output is zipped up on a worker of its own, the messages follow in the usual order
+            List<OutputSink> sinks = new ArrayList<>();
+            List<String> messages = new ArrayList<>();
+            if (report != null) {
+                sinks.add(report);
+                messages.add("Output written to: ");
+            }
+            for (FilterOutput filterOutput : filterOutputs) {
+                if (filterOutput.writer != null) {
+                    sinks.add(filterOutput.writer);
+                    messages.add("Filtered output written to: ");
+                }
+            }
+            Map<OutputSink, Boolean> closed = new ConcurrentHashMap<>();
+            scheduler.runAll(sinks, sink -> closed.put(sink, closeSink(sink)));
+            for (int i = 0; i < sinks.size(); i++) {
+                if (failedSinks.contains(sinks.get(i))) {
+                    System.err.println("Output incomplete, not all rows could be written: " + sinks.get(i).location());
+                } else if (closed.getOrDefault(sinks.get(i), false)) {
+                    System.out.println(messages.get(i) + sinks.get(i).location());
+                }
+            }
+        }
+    }
+
+    static String outputExtension() {
+        if (Constants.OUTPUT_FORMAT_CSV.equals(outputFormat)) return Constants.CSV_EXTENSION;
+        if (Constants.OUTPUT_FORMAT_NDJSON.equals(outputFormat)) return Constants.NDJSON_EXTENSION;
+        return Constants.EXTENSION;
     }
 
-    static void processFile(Path filePath) {
-        try (Workbook wb = WorkbookFactory.create(filePath.toFile())) {
-            Sheet sheet = wb.getSheetAt(0);
-            Row headerRow = sheet.getRow(0);
-            List<String> allColumns = new ArrayList<>();
-            Map<String, Integer> colIndices = new HashMap<>();
-            for (int i = 0; i < headerRow.getLastCellNum(); i++) {
-                Cell cell = headerRow.getCell(i);
-                if (cell != null) {
-                    String colName = cell.getStringCellValue();
-                    allColumns.add(colName);
-                    colIndices.put(colName, i);
+    // The sink for the configured outputFormat; every format rolls over to a new shard past outputShardRows
+    static OutputSink openSink(String outputFile) {
+        if (Constants.OUTPUT_FORMAT_CSV.equals(outputFormat)) {
+            return new TextOutputSink(outputFile, TextOutputSink.Format.CSV, outputShardRows, outputShardBytes);
+        }
+        if (Constants.OUTPUT_FORMAT_NDJSON.equals(outputFormat)) {
+            return new TextOutputSink(outputFile, TextOutputSink.Format.NDJSON, outputShardRows, outputShardBytes);
+        }
+        return new ReportWriter(outputFile, outputRowWindow, outputShardRows, outputZipLevel);
+    }
+
+    private static boolean closeSink(OutputSink sink) {
+        try {
+            sink.close();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Reads one input file and feeds each chunk of rows to the issue analysis (report != null)
+    // and to the status-filter extraction (non-empty filterOutputs)
+    static void processFile(Path filePath, OrderedOutput.FileOutput out, OutputSink report, List<FilterOutput> filterOutputs) {
+        try {
+            readFile(filePath, out, report, filterOutputs);
+        } finally {
+            if (out.index() == 0) {
+                // a first file without a header must not hold up the others
+                firstFileHeaders.countDown();
+            }
+        }
+    }
+
+    private static void readFile(Path filePath, OrderedOutput.FileOutput out, OutputSink report, List<FilterOutput> filterOutputs) {
+        long fileStart = System.nanoTime();
+        // taken before the file is read, so results are only stored for the content they came from
+        ResultManifest.InputState input = manifest != null ? manifest.inputState(filePath) : null;
+        if (input != null && replayStoredResults(input, out, report, filterOutputs)) {
+            return;
+        }
+        boolean recording = input != null && input.hash();
+        AtomicReference<ResultManifest.Recorder> recorder = new AtomicReference<>();
+        AtomicLong rowsRead = new AtomicLong();
+        WorkScheduler.ChunkQueue chunks = scheduler.newChunkQueue();
+        try {
+            WorkbookReader.read(filePath, streamingReader, new WorkbookReader.SheetRowHandler() {
+                ColumnPlan plan;
+
+                @Override
+                public void header(String[] columns) throws Exception {
+                    Map<String, Integer> colIndices = new HashMap<>();
+                    List<String> allColumns = indexColumns(columns, colIndices);
+                    registerHeaders(out.index(), allColumns, report, filterOutputs);
+                    plan = columnPlan(columns, colIndices);
+                    if (recording) {
+                        ResultManifest.Recorder fileRecorder = manifest.record(input, allColumns, sheetHeaders(report, filterOutputs));
+                        recorder.set(fileRecorder);
+                        out.recordTo(fileRecorder);
+                    }
+                }
+
+                List<PendingRow> chunk = new ArrayList<>();
+
+                @Override
+                public void row(int rowNum, String[] values) throws Exception {
+                    rowsRead.incrementAndGet();
+                    chunk.add(new PendingRow(rowNum, values));
+                    if (chunk.size() >= verificationBatchSize) {
+                        submitChunk();
+                    }
+                }
+
+                @Override
+                public void endSheet() throws Exception {
+                    if (!chunk.isEmpty()) {
+                        submitChunk();
+                    }
                 }
+
+                void submitChunk() throws Exception {
+                    List<PendingRow> rows = chunk;
+                    ColumnPlan columns = plan;
+                    OrderedOutput.Chunk output = out.newChunk();
+                    chunk = new ArrayList<>();
+                    // the queue bounds the chunks read ahead of the workers so a streamed sheet never piles up on heap
+                    chunks.submit(() -> {
+                        boolean extracted = filterOutputs.isEmpty() || extractChunk(rows, columns, filterOutputs, output);
+                        CompletableFuture<Boolean> analysis = report != null ? processChunk(rows, columns, output) : CompletableFuture.completedFuture(true);
+                        // the chunk is done once its lookups are, which may be on a retry after this task has returned
+                        return analysis.whenComplete((complete, error) -> {
+                            if ((error != null || !complete || !extracted) && recorder.get() != null) {
+                                recorder.get().markIncomplete();
+                            }
+                            out.complete(output);
+                        });
+                    });
+                }
+            });
+            // waiting for the workers when they fall behind is timed apart from the reading itself
+            RunMetrics.addPhase(RunMetrics.PHASE_BACKPRESSURE, chunks.waitNanos());
+            RunMetrics.addPhase(RunMetrics.PHASE_PARSE, System.nanoTime() - fileStart - chunks.waitNanos());
+            chunks.awaitAll();
+            RunMetrics.add(RunMetrics.ROWS_READ, rowsRead.get());
+            RunMetrics.recordFile(filePath, rowsRead.get(), System.nanoTime() - fileStart, false);
+            if (recorder.get() != null) {
+                recorder.get().commit();
+            }
+        } catch (Exception e) {
+            chunks.cancelAll();
+            if (recorder.get() != null) {
+                recorder.get().discard();
+            }
+            e.printStackTrace();
+        }
+    }
+
+    // Column plans compiled for earlier files; in watch mode the same layouts arrive batch after batch
+    static final Map<List<List<String>>, ColumnPlan> columnPlans = new ConcurrentHashMap<>();
+
+    // The plan for a header row and this batch's output headers, which are complete once registerHeaders returns
+    static ColumnPlan columnPlan(String[] columns, Map<String, Integer> colIndices) {
+        List<List<String>> key = Arrays.asList(Arrays.asList(columns.clone()), new ArrayList<>(osHeaders), new ArrayList<>(otHeaders), new ArrayList<>(allHeaders));
+        ColumnPlan plan = columnPlans.get(key);
+        if (plan == null) {
+            if (columnPlans.size() >= Constants.MAX_COLUMN_PLANS) {
+                columnPlans.clear();
             }
+            plan = new ColumnPlan(colIndices, osHeaders, otHeaders, allHeaders);
+            columnPlans.put(key, plan);
+        }
+        return plan;
+    }
 
-            // build headers if first file
-            synchronized(headerLock) {
-                if (osHeaders.isEmpty()) {
+    // Builds the run's output headers from the first file's columns. The other files wait for it, so the headers
+    // do not depend on which file happens to reach its header row first.
+    static void registerHeaders(int fileIndex, List<String> allColumns, OutputSink report, List<FilterOutput> filterOutputs) throws InterruptedException {
+        if (fileIndex > 0) {
+            firstFileHeaders.await();
+        }
+        synchronized(headerLock) {
+            if (report != null && osHeaders.isEmpty()) {
                 // OS headers: common + OS + "Input to MS" + "Comment"
                 for (String col : allColumns) {
                     if (!col.startsWith(Constants.OT_PREFIX)) {  // include common and OS
@@ -186,245 +719,336 @@ public class ExcelProcessor {
                 otHeaders.add(Constants.INPUT_TO_MS);
                 otHeaders.add(Constants.CANDIDATES_PRESENT);
                 otHeaders.add(Constants.COMMENT);
-                }
             }
+            if (!filterOutputs.isEmpty() && allHeaders.isEmpty()) {
+                allHeaders.addAll(allColumns);
+            }
+        }
+        if (fileIndex == 0) {
+            firstFileHeaders.countDown();
+        }
+    }
 
-            List<List<Object>> localOsData = Collections.synchronizedList(new ArrayList<>());
-            List<List<Object>> localOtData = Collections.synchronizedList(new ArrayList<>());
-            ExecutorService executor = Executors.newFixedThreadPool(threadPoolSize);
-            List<Future<Void>> futures = new ArrayList<>();
-            for (int r = 1; r <= sheet.getLastRowNum(); r++) {
-                final int rowNum = r;
-                futures.add(executor.submit(() -> {
-                    try {
-                        processRow(rowNum, sheet, colIndices, localOsData, localOtData);
-                    } catch (Exception e) {
-                        log.error("Error processing row " + rowNum + ": " + e.getMessage());
-                    }
-                    return null;
-                }));
+    // Output sheets a file contributes to in this run, with their headers
+    static Map<String, List<String>> sheetHeaders(OutputSink report, List<FilterOutput> filterOutputs) {
+        Map<String, List<String>> sheets = new LinkedHashMap<>();
+        if (report != null) {
+            sheets.put(Constants.SHEET_OS, osHeaders);
+            sheets.put(Constants.SHEET_OT, otHeaders);
+        }
+        for (FilterOutput filterOutput : filterOutputs) {
+            sheets.put(filterOutput.sheetName, allHeaders);
+        }
+        return sheets;
+    }
+
+    // Copies the stored rows of an unchanged file into the outputs. Returns false, leaving the outputs untouched,
+    // when the file has to be processed: nothing stored, or stored for other sheets or headers than this run's.
+    static boolean replayStoredResults(ResultManifest.InputState input, OrderedOutput.FileOutput out, OutputSink report, List<FilterOutput> filterOutputs) {
+        long start = System.nanoTime();
+        Path filePath = input.file;
+        ResultManifest.StoredResults stored = manifest.find(input);
+        if (stored == null) return false;
+        AtomicLong replayed = new AtomicLong();
+        try (ResultManifest.StoredResults results = stored) {
+            registerHeaders(out.index(), results.columns(), report, filterOutputs);
+            for (Map.Entry<String, List<String>> sheet : sheetHeaders(report, filterOutputs).entrySet()) {
+                if (!sheet.getValue().equals(results.sheetHeaders().get(sheet.getKey()))) {
+                    log.info("Stored results of {} do not cover sheet '{}', processing the file again", filePath, sheet.getKey());
+                    return false;
+                }
             }
-            for (Future<Void> f : futures) {
-                f.get();
+            // replayed in chunks of the same size as the verified ones, the rows are already in order
+            AtomicReference<OrderedOutput.Chunk> chunk = new AtomicReference<>(out.newChunk());
+            results.forEachRow((sheetName, row) -> {
+                chunk.get().add(sheetName, row);
+                if (replayed.incrementAndGet() % verificationBatchSize == 0) {
+                    out.complete(chunk.getAndSet(out.newChunk()));
+                }
+            });
+            out.complete(chunk.get());
+            RunMetrics.add(RunMetrics.ROWS_REPLAYED, replayed.get());
+            RunMetrics.recordFile(filePath, replayed.get(), System.nanoTime() - start, true);
+            log.info("Unchanged since the last run, reused stored results of {}", filePath);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // damage shows while replaying; rows already replayed cannot be taken back, so the outputs are
+            // reported incomplete and the next run processes the file again
+            log.error("Error reading stored results of {}: {}", filePath, e.getMessage());
+            manifest.invalidate(filePath);
+            out.rowsLost(e instanceof IOException ? (IOException) e : new IOException(e));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    // Maps each named header cell to its column index and returns the names in sheet order
+    static List<String> indexColumns(String[] columns, Map<String, Integer> colIndices) {
+        List<String> allColumns = new ArrayList<>();
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] != null) {
+                allColumns.add(columns[i]);
+                colIndices.put(columns[i], i);
             }
-            executor.shutdown();
-            osData.addAll(localOsData);
-            otData.addAll(localOtData);
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return allColumns;
     }
 
-    static void processFilteredExtraction(List<Path> files, String osFilter, String otFilter) {
-        allHeaders = new ArrayList<>();
-        filteredData = Collections.synchronizedList(new ArrayList<>());
-        ExecutorService fileExecutor = Executors.newFixedThreadPool(threadPoolSize);
-        List<Future<Void>> fileFutures = new ArrayList<>();
-        for (Path filePath : files) {
-            fileFutures.add(fileExecutor.submit(() -> {
-                try {
-                    processFilteredFile(filePath, osFilter, otFilter);
-                } catch (Exception e) {
-                    System.err.println("Error processing file " + filePath + ": " + e.getMessage());
-                }
-                return null;
-            }));
+    // One status filter group and the workbook its matching rows are written to
+    static class FilterOutput {
+        final String osFilter;
+        final String otFilter;
+        final String outputFile;
+        final String sheetName;
+        OutputSink writer;
+
+        FilterOutput(String osFilter, String otFilter, String outputFile) {
+            this.osFilter = osFilter;
+            this.otFilter = otFilter;
+            this.outputFile = outputFile;
+            this.sheetName = "OS " + osFilter + " OT " + otFilter;
         }
-        for (Future<Void> f : fileFutures) {
+
+        boolean matches(String osStatus, String otStatus) {
+            return osFilter.equals(osStatus) && otFilter.equals(otStatus);
+        }
+    }
+
+    // Runs the status-filter extraction over a chunk; returns false when a row failed
+    static boolean extractChunk(List<PendingRow> rows, ColumnPlan plan, List<FilterOutput> filterOutputs, OrderedOutput.Chunk output) {
+        long start = System.nanoTime();
+        boolean complete = true;
+        for (PendingRow pending : rows) {
             try {
-                f.get();
+                processFilteredRow(pending.values, plan, filterOutputs, output);
             } catch (Exception e) {
-                log.error("Error in filtered file processing future: {}", e.getMessage());
+                complete = false;
+                log.error("Error processing filtered row " + pending.rowNum + ": " + e.getMessage());
             }
         }
-        fileExecutor.shutdown();
+        RunMetrics.addPhase(RunMetrics.PHASE_EXTRACTION, System.nanoTime() - start);
+        return complete;
     }
 
-    static void processFilteredFile(Path filePath, String osFilter, String otFilter) {
-        try (Workbook wb = WorkbookFactory.create(filePath.toFile())) {
-            Sheet sheet = wb.getSheetAt(0);
-            Row headerRow = sheet.getRow(0);
-            List<String> allColumns = new ArrayList<>();
-            Map<String, Integer> colIndices = new HashMap<>();
-            for (int i = 0; i < headerRow.getLastCellNum(); i++) {
-                Cell cell = headerRow.getCell(i);
-                if (cell != null) {
-                    String colName = cell.getStringCellValue();
-                    allColumns.add(colName);
-                    colIndices.put(colName, i);
-                }
-            }
+    // Routes the row to every filter group whose OS/OT statuses it matches
+    static void processFilteredRow(String[] row, ColumnPlan plan, List<FilterOutput> filterOutputs, OrderedOutput.Chunk output) {
+        String osStatus = ColumnPlan.value(row, plan.osStatus);
+        String otStatus = ColumnPlan.value(row, plan.otStatus);
 
-            // build headers if first file
-            synchronized(headerLock) {
-                if (allHeaders.isEmpty()) {
-                    allHeaders.addAll(allColumns);
+        List<Object> rowData = null;
+        for (int f = 0; f < filterOutputs.size(); f++) {
+            if (!filterOutputs.get(f).matches(osStatus, otStatus)) continue;
+            if (rowData == null) {
+                RunMetrics.increment(RunMetrics.ROWS_FILTERED);
+                rowData = new ArrayList<>(plan.allProjection.length);
+                for (int index : plan.allProjection) {
+                    rowData.add(ColumnPlan.value(row, index));
                 }
             }
+            output.add(filterOutputs.get(f).sheetName, rowData);
+        }
+    }
 
-            List<List<Object>> localFilteredData = Collections.synchronizedList(new ArrayList<>());
-            ExecutorService executor = Executors.newFixedThreadPool(threadPoolSize);
-            List<Future<Void>> futures = new ArrayList<>();
-            for (int r = 1; r <= sheet.getLastRowNum(); r++) {
-                final int rowNum = r;
-                futures.add(executor.submit(() -> {
-                    try {
-                        processFilteredRow(rowNum, sheet, colIndices, localFilteredData, osFilter, otFilter);
-                    } catch (Exception e) {
-                        log.error("Error processing filtered row " + rowNum + ": " + e.getMessage());
-                    }
-                    return null;
-                }));
-            }
-            for (Future<Void> f : futures) {
-                f.get();
+    static String computeRequestId(String[] row, ColumnPlan plan, String type) {
+        String transactionToken = ColumnPlan.value(row, "OS".equals(type) ? plan.osTransactionToken : plan.otTransactionToken);
+        int suffix = 0;
+        for (int m = 0; m < plan.messageColumns.length; m++) {
+            String val = ColumnPlan.value(row, plan.messageColumns[m]);
+            if (val != null && !val.isEmpty()) {
+                suffix = plan.messageSuffixes[m];
+                break;
             }
-            executor.shutdown();
-            filteredData.addAll(localFilteredData);
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return transactionToken + suffix;
     }
 
-    static void processFilteredRow(int r, Sheet sheet, Map<String, Integer> colIndices, List<List<Object>> localFilteredData, String osFilter, String otFilter) {
-        Row row = sheet.getRow(r);
-        if (row == null) return;
-        String osStatus = getCellValue(row, colIndices.get(Constants.OS_TEST_STATUS));
-        String otStatus = getCellValue(row, colIndices.get(Constants.OT_TEST_STATUS));
-        if (!osFilter.equals(osStatus) || !otFilter.equals(otStatus)) return;
+    // A data row waiting in a chunk, along with the checks it needs once it is known to be failing
+    static class PendingRow {
+        final int rowNum;
+        final String[] values;
+        boolean isOsFail;
+        boolean isOtFail;
+        String requestId;
+        BatchVerifier.InputCheck osInputCheck;
+        BatchVerifier.InputCheck otInputCheck;
+        BatchVerifier.CandidateCheck candidateCheck;
 
-        List<Object> rowData = new ArrayList<>();
-        for (String header : allHeaders) {
-            rowData.add(getCellValue(row, colIndices.get(header)));
+        PendingRow(int rowNum, String[] values) {
+            this.rowNum = rowNum;
+            this.values = values;
         }
-        localFilteredData.add(rowData);
     }
 
-    static String computeRequestId(Row row, Map<String, Integer> colIndices, String type) {
-        String transactionToken = getCellValue(row, colIndices.get(type + Constants.TRANSACTION_TOKEN_SUFFIX));
-        String messageType = "";
-
-        for (String col : colIndices.keySet()) {
-            if (col.startsWith(Constants.MESSAGE_PREFIX)) {
-                String val = getCellValue(row, colIndices.get(col));
-                if (val != null && !val.isEmpty()) {
-                    messageType = col.substring((Constants.MESSAGE_PREFIX).length()).trim();
-                    break;
+    // Classifies a chunk of rows, resolves their checker1 and checker2 lookups in batches and then assembles the OS/OT rows.
+    // Completes with false when a row failed or a lookup could not be resolved.
+    static CompletableFuture<Boolean> processChunk(List<PendingRow> chunk, ColumnPlan plan, OrderedOutput.Chunk output) {
+        long start = System.nanoTime();
+        List<PendingRow> failing = new ArrayList<>();
+        List<BatchVerifier.InputCheck> inputChecks = new ArrayList<>();
+        boolean classified = true;
+        for (PendingRow pending : chunk) {
+            try {
+                if (prepareRow(pending, plan)) {
+                    failing.add(pending);
+                    if (pending.isOsFail) RunMetrics.increment(RunMetrics.ROWS_OS_FAIL);
+                    if (pending.isOtFail) RunMetrics.increment(RunMetrics.ROWS_OT_FAIL);
+                    if (pending.osInputCheck != null) inputChecks.add(pending.osInputCheck);
+                    if (pending.otInputCheck != null) inputChecks.add(pending.otInputCheck);
                 }
+            } catch (Exception e) {
+                classified = false;
+                log.error("Error processing row " + pending.rowNum + ": " + e.getMessage());
             }
         }
-        int suffix = 0;
-        if (Constants.SWIFT.equals(messageType)) suffix = 1;
-        else if (Constants.FEDWIRE.equals(messageType)) suffix = 2;
-        else if (Constants.ISO20022.equals(messageType)) suffix = 3;
-        return transactionToken + suffix;
+        RunMetrics.addPhase(RunMetrics.PHASE_ANALYSIS, System.nanoTime() - start);
+        if (failing.isEmpty()) return CompletableFuture.completedFuture(classified);
+
+        boolean rowsClassified = classified;
+        return BatchVerifier.verify(scheduler, inputChecks, () -> candidateChecks(failing, plan))
+                .thenApply(verified -> assembleRows(failing, plan, inputChecks, output) && rowsClassified);
+    }
+
+    // Candidates are only looked up for OT failures whose input reached matching. Asked again on every retry,
+    // it adds the lookups of rows whose input check has only now been resolved.
+    static List<BatchVerifier.CandidateCheck> candidateChecks(List<PendingRow> failing, ColumnPlan plan) {
+        List<BatchVerifier.CandidateCheck> candidateChecks = new ArrayList<>();
+        for (PendingRow pending : failing) {
+            if (pending.candidateCheck == null && pending.isOtFail && Constants.YES.equals(pending.otInputCheck.result)) {
+                pending.candidateCheck = checker2(pending.requestId, pending.values, plan);
+            }
+            if (pending.candidateCheck != null) {
+                candidateChecks.add(pending.candidateCheck);
+            }
+        }
+        return candidateChecks;
     }
 
-    static void processRow(int r, Sheet sheet, Map<String, Integer> colIndices, List<List<Object>> localOsData, List<List<Object>> localOtData) {
-        Row row = sheet.getRow(r);
-        if (row == null) return;
-        String osStatus = getCellValue(row, colIndices.get(Constants.OS_TEST_STATUS));
-        String otStatus = getCellValue(row, colIndices.get(Constants.OT_TEST_STATUS));
-        boolean isOsFail = Constants.FAIL_STATUS.equals(osStatus);
-        boolean isOtFail = Constants.FAIL_STATUS.equals(otStatus);
-        if (!isOsFail && !isOtFail) return;
+    private static boolean assembleRows(List<PendingRow> failing, ColumnPlan plan, List<BatchVerifier.InputCheck> inputChecks, OrderedOutput.Chunk output) {
+        long start = System.nanoTime();
+        boolean complete = true;
+        for (BatchVerifier.InputCheck check : inputChecks) {
+            if (check.failed) complete = false;
+        }
+        for (PendingRow pending : failing) {
+            if (pending.candidateCheck != null && pending.candidateCheck.failed) complete = false;
+        }
+
+        for (PendingRow pending : failing) {
+            try {
+                processRow(pending, plan, output);
+            } catch (Exception e) {
+                complete = false;
+                log.error("Error processing row " + pending.rowNum + ": " + e.getMessage());
+            }
+        }
+        RunMetrics.addPhase(RunMetrics.PHASE_ANALYSIS, System.nanoTime() - start);
+        return complete;
+    }
+
+    // Returns false for rows that pass both OS and OT, otherwise computes the request id and the checker1 lookups
+    static boolean prepareRow(PendingRow pending, ColumnPlan plan) {
+        String[] row = pending.values;
+        String osStatus = ColumnPlan.value(row, plan.osStatus);
+        String otStatus = ColumnPlan.value(row, plan.otStatus);
+        pending.isOsFail = Constants.FAIL_STATUS.equals(osStatus);
+        pending.isOtFail = Constants.FAIL_STATUS.equals(otStatus);
+        if (!pending.isOsFail && !pending.isOtFail) return false;
 
         // compute requestId
-        String requestId = null;
-        if (isOsFail) {
-            requestId = computeRequestId(row, colIndices, "OS");
+        if (pending.isOsFail) {
+            pending.requestId = computeRequestId(row, plan, "OS");
         } else {
-            requestId = computeRequestId(row, colIndices, "OT");
+            pending.requestId = computeRequestId(row, plan, "OT");
         }
 
-        if (isOsFail) {
-            String inputToMs = checker1(requestId, row, colIndices, "OS");
-            List<Object> rowData = new ArrayList<>();
-            for (String header : osHeaders) {
-                if (Constants.INPUT_TO_MS.equals(header)) {
+        if (pending.isOsFail) {
+            pending.osInputCheck = checker1(pending.requestId, row, plan, "OS");
+        }
+        if (pending.isOtFail) {
+            pending.otInputCheck = checker1(pending.requestId, row, plan, "OT");
+        }
+        return true;
+    }
+
+    static void processRow(PendingRow pending, ColumnPlan plan, OrderedOutput.Chunk output) {
+        String[] row = pending.values;
+
+        if (pending.isOsFail) {
+            String inputToMs = pending.osInputCheck.result;
+            List<Object> rowData = new ArrayList<>(plan.osProjection.length);
+            for (int index : plan.osProjection) {
+                if (index == ColumnPlan.INPUT_TO_MS) {
                     rowData.add(inputToMs);
-                } else if (Constants.COMMENT.equals(header)) {
-                    String comment = Constants.NO.equals(inputToMs) ? Constants.TF_ISSUE : Constants.MATCHING_ISSUE;
-                    rowData.add(comment);
+                } else if (index == ColumnPlan.COMMENT) {
+                    rowData.add(osComment(inputToMs));
                 } else {
-                    rowData.add(getCellValue(row, colIndices.get(header)));
+                    rowData.add(ColumnPlan.value(row, index));
                 }
             }
-            localOsData.add(rowData);
+            output.add(Constants.SHEET_OS, rowData);
         }
 
-        if (isOtFail) {
-            String inputToMs = checker1(requestId, row, colIndices, "OT");
+        if (pending.isOtFail) {
+            String inputToMs = pending.otInputCheck.result;
             String candidates;
-            if (Constants.YES.equals(inputToMs)) {
-                candidates = checker2(requestId, row, colIndices);
+            if (pending.candidateCheck != null) {
+                candidates = pending.candidateCheck.result;
             } else {
                 candidates = Constants.NA;
             }
-            List<Object> rowData = new ArrayList<>();
-            for (String header : otHeaders) {
-                if (Constants.INPUT_TO_MS.equals(header)) {
+            List<Object> rowData = new ArrayList<>(plan.otProjection.length);
+            for (int index : plan.otProjection) {
+                if (index == ColumnPlan.INPUT_TO_MS) {
                     rowData.add(inputToMs);
-                } else if (Constants.CANDIDATES_PRESENT.equals(header)) {
+                } else if (index == ColumnPlan.CANDIDATES_PRESENT) {
                     rowData.add(candidates);
-                } else if (Constants.COMMENT.equals(header)) {
-                    String comment;
-                    if (Constants.YES.equals(candidates)) {
-                        comment = Constants.SCORING_ENGINE_ISSUE;
-                    } else if (Constants.NO.equals(candidates)) {
-                        comment = Constants.OT_ISSUE;
-                    } else {
-                        comment = Constants.TF_ISSUE;
-                    }
-                    rowData.add(comment);
+                } else if (index == ColumnPlan.COMMENT) {
+                    rowData.add(otComment(candidates));
                 } else {
-                    rowData.add(getCellValue(row, colIndices.get(header)));
+                    rowData.add(ColumnPlan.value(row, index));
                 }
             }
-            localOtData.add(rowData);
+            output.add(Constants.SHEET_OT, rowData);
         }
     }
 
-    static String checker1(String requestId, Row row, Map<String, Integer> colIndices, String type) {
+    // Comment of an OS failure from its "Input to MS" result
+    static String osComment(String inputToMs) {
+        return Constants.NO.equals(inputToMs) ? Constants.TF_ISSUE : Constants.MATCHING_ISSUE;
+    }
+
+    // Comment of an OT failure from its "Candidates present" result
+    static String otComment(String candidates) {
+        if (Constants.YES.equals(candidates)) {
+            return Constants.SCORING_ENGINE_ISSUE;
+        } else if (Constants.NO.equals(candidates)) {
+            return Constants.OT_ISSUE;
+        } else {
+            return Constants.TF_ISSUE;
+        }
+    }
+
+    // Builds the checker1 lookup for a row; it resolves to NA straight away when no webservice matched
+    static BatchVerifier.InputCheck checker1(String requestId, String[] row, ColumnPlan plan, String type) {
         // find webservice
-        String webservice = null;
-        String prefix = type + Constants.WEBSERVICE_PREFIX;
-        String suffix = Constants.MATCHES_SUFFIX;
-        for (String col : colIndices.keySet()) {
-            if (col.startsWith(prefix) && col.endsWith(suffix)) {
-                String val = getCellValue(row, colIndices.get(col));
-                if (val != null && !val.isEmpty()) {
-                    webservice = col.substring(prefix.length(), col.length() - suffix.length());
-                    break;
-                }
+        int[] webserviceColumns = "OS".equals(type) ? plan.osWebserviceColumns : plan.otWebserviceColumns;
+        String searchText = null;
+        for (int w = 0; w < webserviceColumns.length; w++) {
+            String val = ColumnPlan.value(row, webserviceColumns[w]);
+            if (val != null && !val.isEmpty()) {
+                searchText = "OS".equals(type) ? plan.osSearchTexts[w] : plan.otSearchTexts[w];
+                break;
             }
         }
-        if (webservice == null) return Constants.NA;
-
-        String searchText = getSearchText(webservice);
-        String sourceInput = getCellValue(row, colIndices.get(Constants.SOURCE_INPUT));
-        String query = Constants.CHECKER1_QUERY;
-        try (Connection conn = SQLUtility.getDbConnection();
-             PreparedStatement ps = conn.prepareStatement(query)) {
-            ps.setString(1, requestId);
-            ps.setString(2, "%" + searchText + "%");
-            log.info("Executing checker1 query: {} with params: requestId={}, likePattern={}", query, requestId, "%" + searchText + "%");
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String json = rs.getString(1);
-                    if (json != null && json.contains(sourceInput)) {
-                        return Constants.YES;
-                    }
-                }
-            }
-        } catch (SQLTimeoutException | SQLRecoverableException e) {
-            log.error("Database timeout/recoverable error in checker1: {}", e.getMessage());
-            return Constants.NA;
-        } catch (Exception e) {
-            log.error("Unexpected error in checker1: {}", e.getMessage(), e);
-            return Constants.NA;
+        String sourceInput = ColumnPlan.value(row, plan.sourceInput);
+        if (searchText == null) {
+            BatchVerifier.InputCheck check = new BatchVerifier.InputCheck(requestId, "", sourceInput);
+            check.result = Constants.NA;
+            return check;
         }
-        return Constants.NO;
+        return new BatchVerifier.InputCheck(requestId, searchText, sourceInput);
     }
 
     static String getSearchText(String webservice) {
@@ -446,32 +1070,17 @@ public class ExcelProcessor {
         }
     }
 
-    static String checker2(String requestId, Row row, Map<String, Integer> colIndices) {
-        String nUid = getCellValue(row, colIndices.get(Constants.N_UID));
-        String watchlist = getCellValue(row, colIndices.get(Constants.WATCHLIST));
-        String targetCol = getCellValue(row, colIndices.get(Constants.TARGET_COLUMN));
+    // Builds the checker2 lookup for a row; it resolves to NA straight away for watchlists without an OT table
+    static BatchVerifier.CandidateCheck checker2(String requestId, String[] row, ColumnPlan plan) {
+        String nUid = ColumnPlan.value(row, plan.nUid);
+        String watchlist = ColumnPlan.value(row, plan.watchlist);
+        String targetCol = ColumnPlan.value(row, plan.targetColumn);
         String table = Constants.OT_TABLE_WL_MAP.get(watchlist);
-        if (table == null) return Constants.NA;
-        String query = Constants.CHECKER2_QUERY_PREFIX + targetCol + " is not null";
-        try (Connection conn = SQLUtility.getDbConnection();
-             PreparedStatement ps = conn.prepareStatement(query)) {
-            ps.setString(1, requestId);
-            ps.setString(2, table);
-            ps.setString(3, nUid);
-            log.info("Executing checker2 query: {} with params: requestId={}, nUid={}, table={}, targetCol={}", query, requestId, nUid, table, targetCol);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1) > 0 ? Constants.YES : Constants.NO;
-                }
-            }
-        } catch (SQLTimeoutException | SQLRecoverableException e) {
-            log.error("Database timeout/recoverable error in checker2: {}", e.getMessage());
-            return Constants.NA;
-        } catch (Exception e) {
-            log.error("Unexpected error in checker2: {}", e.getMessage(), e);
-            return Constants.NA;
+        BatchVerifier.CandidateCheck check = new BatchVerifier.CandidateCheck(requestId, table, nUid, targetCol);
+        if (table == null) {
+            check.result = Constants.NA;
         }
-        return Constants.NO;
+        return check;
     }
 
     static String getCellValue(Row row, Integer colIndex) {
@@ -481,66 +1090,4 @@ public class ExcelProcessor {
         return cell.toString().trim();
     }
 
-    static void writeOutput(String outputFile) {
-        try (Workbook wb = new XSSFWorkbook()) {
-            // OS sheet
-            Sheet osSheet = wb.createSheet(Constants.SHEET_OS);
-            Row osHeaderRow = osSheet.createRow(0);
-            for (int i = 0; i < osHeaders.size(); i++) {
-                osHeaderRow.createCell(i).setCellValue(osHeaders.get(i));
-            }
-            for (int r = 0; r < osData.size(); r++) {
-                Row row = osSheet.createRow(r + 1);
-                List<Object> data = osData.get(r);
-                for (int c = 0; c < data.size(); c++) {
-                    row.createCell(c).setCellValue(data.get(c).toString());
-                }
-            }
-
-            // OT sheet
-            Sheet otSheet = wb.createSheet(Constants.SHEET_OT);
-            Row otHeaderRow = otSheet.createRow(0);
-            for (int i = 0; i < otHeaders.size(); i++) {
-                otHeaderRow.createCell(i).setCellValue(otHeaders.get(i));
-            }
-            for (int r = 0; r < otData.size(); r++) {
-                Row row = otSheet.createRow(r + 1);
-                List<Object> data = otData.get(r);
-                for (int c = 0; c < data.size(); c++) {
-                    row.createCell(c).setCellValue(data.get(c).toString());
-                }
-            }
-
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                wb.write(fos);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    static void writeFilteredOutput(String outputFile, String osFilter, String otFilter) {
-        try (Workbook wb = new XSSFWorkbook()) {
-            String sheetName = "OS " + osFilter + " OT " + otFilter;
-            Sheet sheet = wb.createSheet(sheetName);
-            Row headerRow = sheet.createRow(0);
-            for (int i = 0; i < allHeaders.size(); i++) {
-                headerRow.createCell(i).setCellValue(allHeaders.get(i));
-            }
-            for (int r = 0; r < filteredData.size(); r++) {
-                Row row = sheet.createRow(r + 1);
-                List<Object> data = filteredData.get(r);
-                for (int c = 0; c < data.size(); c++) {
-                    row.createCell(c).setCellValue(data.get(c).toString());
-                }
-            }
-
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                wb.write(fos);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
 }
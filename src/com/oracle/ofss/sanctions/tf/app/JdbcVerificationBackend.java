@@ -0,0 +1,125 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the checker lookups from FCC_MR_MATCHED_RESULT_RT and rt_candidates through the connection pool.
+ */
+public class JdbcVerificationBackend implements VerificationBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcVerificationBackend.class);
+
+    @Override
+    public Session openSession() {
+        return new JdbcSession(SQLUtility.openSession());
+    }
+
+    private static class JdbcSession implements Session {
+        private final SQLUtility.VerificationSession session;
+
+        JdbcSession(SQLUtility.VerificationSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void fetchRequestDocuments(List<String> requestIds, DocumentConsumer consumer) throws Exception {
+            int size = inListSize(requestIds.size());
+            PreparedStatement ps = session.prepare(Constants.CHECKER1_BATCH_QUERY_PREFIX + placeholders(size) + ")");
+            bindInList(ps, 1, requestIds, size);
+            log.info("Executing checker1 batch query for {} request ids", requestIds.size());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Clob clob = rs.getClob(2);
+                    if (clob == null) continue;
+                    try {
+                        consumer.accept(rs.getString(1), clob);
+                    } finally {
+                        clob.free();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Map<String, BigDecimal> fetchRunKeys(List<String> requestIds) throws Exception {
+            int size = inListSize(requestIds.size());
+            PreparedStatement ps = session.prepare(Constants.RUN_SKEY_QUERY_PREFIX + placeholders(size) + ")");
+            bindInList(ps, 1, requestIds, size);
+            log.info("Resolving n_run_skey for {} request ids", requestIds.size());
+            Map<String, BigDecimal> found = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    found.putIfAbsent(rs.getString(1), rs.getBigDecimal(2));
+                }
+            }
+            return found;
+        }
+
+        // One grouped count for all pairs. The (index, run key, n_uid) keys are bound as a derived table
+        // so each returned index maps back to its pair exactly.
+        @Override
+        public boolean[] candidatesPresent(String table, String targetCol, List<BigDecimal> runKeys, List<String> nUids) throws Exception {
+            int count = runKeys.size();
+            int size = inListSize(count);
+            StringBuilder keys = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                if (i > 0) keys.append(" union all ");
+                keys.append(Constants.CHECKER2_KEY_ROW);
+            }
+            PreparedStatement ps = session.prepare(String.format(Constants.CHECKER2_BATCH_QUERY, keys, targetCol));
+            int p = 1;
+            for (int i = 0; i < size; i++) {
+                int idx = Math.min(i, count - 1);
+                ps.setInt(p++, idx);
+                ps.setBigDecimal(p++, runKeys.get(idx));
+                ps.setString(p++, nUids.get(idx));
+            }
+            ps.setString(p, table);
+            log.info("Executing checker2 batch query for {} rows with table={}, targetCol={}", count, table, targetCol);
+            boolean[] present = new boolean[count];
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    present[rs.getInt(1)] = rs.getInt(2) > 0;
+                }
+            }
+            return present;
+        }
+
+        @Override
+        public void close() {
+            session.close();
+        }
+    }
+
+    // IN-lists are padded up to a power of two so the number of distinct statement texts stays small
+    static int inListSize(int count) {
+        int size = Constants.MIN_IN_LIST_SIZE;
+        while (size < count) size <<= 1;
+        return Math.min(size, Constants.MAX_IN_LIST_SIZE);
+    }
+
+    static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    // Binds the values from startIndex on, repeating the last value to fill the padded slots
+    static void bindInList(PreparedStatement ps, int startIndex, List<String> values, int size) throws Exception {
+        for (int i = 0; i < size; i++) {
+            ps.setString(startIndex + i, values.get(Math.min(i, values.size() - 1)));
+        }
+    }
+}
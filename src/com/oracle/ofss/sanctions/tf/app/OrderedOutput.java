@@ -0,0 +1,476 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts the rows produced by the worker threads back into input order: by file, then by chunk, then by row.
+ * Each chunk task fills its own {@link Chunk} without any locking; finished chunks are released in sequence,
+ * so every output sheet receives the rows in the same order on every run.
+ *
+ * Only the first unfinished file (the head) writes to the outputs directly. Files that run ahead of it
+ * spool their released chunks to a temp file, which is copied into the outputs once all earlier files are done.
+ * The lock only decides where a released chunk goes; the spool is written by the releasing threads and read back
+ * by the thread that made the file the head, both outside it.
+ *
+ * Every output sheet is written by a thread of its own, fed through a queue in release order, so the sheets and
+ * workbooks are built in parallel while the workers go on with the next chunks. Rows are queued while the lock
+ * is held, without blocking; only afterwards does a releasing thread wait for room in the queues it added to,
+ * so a slow sheet holds back the threads releasing rows for it and no one else.
+ *
+ * The {@link RowStore}s of a sheet are recycled: once a store has been written or spooled it is cleared and
+ * handed to the next chunk, so its column dictionaries are built once per sheet rather than once per chunk.
+ */
+public class OrderedOutput implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderedOutput.class);
+    private static final byte BLOCK = 1;
+    private static final byte END = 0;
+    private static final RowStore END_OF_SHEET = new RowStore();
+
+    private final Map<String, OutputSink> writers;
+    private final Map<String, SheetLane> lanes = new ConcurrentHashMap<>();
+    // cleared stores per output sheet, taken by the workers and returned by the writers
+    private final Map<String, BlockingQueue<RowStore>> idleStores = new ConcurrentHashMap<>();
+    private final Set<OutputSink> failedWriters = new HashSet<>();
+    // the first error that lost rows of a file (spool or stored results); every output misses rows after it
+    private final AtomicReference<UncheckedIOException> lostRows = new AtomicReference<>();
+    private final FileOutput[] files;
+    private int head;
+
+    // Where the released chunks of a file go: to its spool, to its spool while the rows spooled so far are
+    // copied out, or straight to the writers
+    private enum Stage { SPOOLING, DRAINING, HEAD }
+
+    // writers maps every output sheet to the sink holding it
+    public OrderedOutput(int fileCount, Map<String, OutputSink> writers) {
+        this.writers = writers;
+        this.files = new FileOutput[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            files[i] = new FileOutput(i);
+        }
+        if (fileCount > 0) {
+            files[0].stage = Stage.HEAD;
+        }
+    }
+
+    public FileOutput file(int index) {
+        return files[index];
+    }
+
+    // Outputs missing rows because a sheet could not be written, known once close() has returned or thrown
+    public synchronized Set<OutputSink> failedWriters() {
+        return new HashSet<>(failedWriters);
+    }
+
+    // Releases whatever is still held back, e.g. after a file task died without finishing, and waits until
+    // every sheet has been written. Throws when a sheet could not be written in full, with the first error of
+    // each failed sheet.
+    @Override
+    public void close() {
+        FileOutput draining;
+        synchronized (this) {
+            for (FileOutput file : files) {
+                file.done = true;
+            }
+            // the lanes are joined below, their queues need no room
+            draining = advance(new ArrayList<>());
+        }
+        drain(draining);
+        for (SheetLane lane : lanes.values()) {
+            lane.queue.add(END_OF_SHEET);
+        }
+        for (SheetLane lane : lanes.values()) {
+            try {
+                lane.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (this) {
+            IllegalStateException failure = null;
+            for (SheetLane lane : lanes.values()) {
+                if (lane.error == null) continue;
+                failedWriters.add(lane.writer);
+                if (failure == null) {
+                    failure = new IllegalStateException("Could not write sheet '" + lane.sheetName + "' to " + lane.writer.location(), lane.error);
+                } else {
+                    failure.addSuppressed(lane.error);
+                }
+            }
+            UncheckedIOException rowsFailure = lostRows.get();
+            if (rowsFailure != null) {
+                failedWriters.addAll(writers.values());
+                if (failure == null) {
+                    failure = new IllegalStateException(rowsFailure.getMessage(), rowsFailure);
+                } else {
+                    failure.addSuppressed(rowsFailure);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    // Moves the head past the files that are done. Returns the new head, which the caller has to drain
+    // outside the lock before any later file can follow.
+    private FileOutput advance(List<SheetLane> queued) {
+        while (head < files.length && files[head].stage == Stage.HEAD && files[head].done) {
+            files[head].releaseRemaining(queued);
+            head++;
+            if (head < files.length) {
+                files[head].stage = Stage.DRAINING;
+                return files[head];
+            }
+        }
+        return null;
+    }
+
+    // Copies a new head's spool into the outputs, round after round while its workers go on spooling, until
+    // nothing is left behind and the file writes directly. A head that is already done hands over to the next.
+    private void drain(FileOutput file) {
+        while (file != null) {
+            if (file.copySpool()) continue;
+            List<SheetLane> queued = new ArrayList<>();
+            synchronized (this) {
+                synchronized (file.spoolLock) {
+                    // spooled since the last round, copied out first
+                    if (file.spoolOut != null) continue;
+                    Chunk chunk;
+                    while ((chunk = file.pending.poll()) != null) {
+                        write(chunk.sheets, queued);
+                    }
+                    file.stage = Stage.HEAD;
+                }
+                file = advance(queued);
+            }
+            awaitRoom(queued);
+        }
+    }
+
+    private void loseRows(UncheckedIOException e) {
+        log.error(e.getMessage(), e.getCause());
+        lostRows.compareAndSet(null, e);
+    }
+
+    /**
+     * Rows of one chunk by output sheet, filled by a single worker thread.
+     */
+    public static class Chunk {
+        final long sequence;
+        final Map<String, RowStore> sheets = new LinkedHashMap<>();
+        private final OrderedOutput output;
+
+        Chunk(long sequence, OrderedOutput output) {
+            this.sequence = sequence;
+            this.output = output;
+        }
+
+        public void add(String sheetName, List<Object> row) {
+            sheets.computeIfAbsent(sheetName, output::takeStore).add(row);
+        }
+    }
+
+    /**
+     * Output of one input file. Chunks are numbered by the reading thread as they are cut and may complete in
+     * any order.
+     */
+    public class FileOutput {
+        private final int index;
+        private final Map<Long, Chunk> completed = new HashMap<>();
+        private long nextChunk;
+        private long nextRelease;
+        private boolean done;
+        private ResultManifest.Recorder recorder;
+        private volatile Stage stage = Stage.SPOOLING;
+        // released while not the head, in order, until spooled
+        private final Queue<Chunk> pending = new ConcurrentLinkedQueue<>();
+        private final Object spoolLock = new Object();
+        private Path spool;
+        private DataOutputStream spoolOut;
+
+        FileOutput(int index) {
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        // Called from the reading thread only
+        public Chunk newChunk() {
+            return new Chunk(nextChunk++, OrderedOutput.this);
+        }
+
+        // Rows released from now on are also stored for incremental runs, in output order
+        public void recordTo(ResultManifest.Recorder recorder) {
+            synchronized (OrderedOutput.this) {
+                this.recorder = recorder;
+            }
+        }
+
+        // Rows of this file could not be produced after some of them were released; close() reports the outputs
+        public void rowsLost(IOException e) {
+            loseRows(new UncheckedIOException("Output rows of file " + index + " are incomplete", e));
+        }
+
+        public void complete(Chunk chunk) {
+            List<SheetLane> queued = new ArrayList<>();
+            synchronized (OrderedOutput.this) {
+                // a chunk still running when its file was abandoned
+                if (done) return;
+                completed.put(chunk.sequence, chunk);
+                Chunk next;
+                while ((next = completed.remove(nextRelease)) != null) {
+                    release(next, queued);
+                    nextRelease++;
+                }
+            }
+            if (stage != Stage.HEAD) {
+                flushSpool();
+            }
+            awaitRoom(queued);
+        }
+
+        // No more chunks will complete for this file
+        public void finish() {
+            List<SheetLane> queued = new ArrayList<>();
+            FileOutput draining;
+            synchronized (OrderedOutput.this) {
+                done = true;
+                draining = advance(queued);
+            }
+            awaitRoom(queued);
+            drain(draining);
+        }
+
+        // chunks after a gap left by a failed or cancelled chunk, still in sequence
+        private void releaseRemaining(List<SheetLane> queued) {
+            List<Long> sequences = new ArrayList<>(completed.keySet());
+            Collections.sort(sequences);
+            for (Long sequence : sequences) {
+                release(completed.remove(sequence), queued);
+            }
+        }
+
+        private void release(Chunk chunk, List<SheetLane> queued) {
+            if (recorder != null) {
+                for (Map.Entry<String, RowStore> sheet : chunk.sheets.entrySet()) {
+                    recorder.record(sheet.getKey(), sheet.getValue());
+                }
+            }
+            if (stage == Stage.HEAD) {
+                write(chunk.sheets, queued);
+            } else {
+                pending.add(chunk);
+            }
+        }
+
+        // Spools the chunks released so far, unless the file has become the head in the meantime
+        private void flushSpool() {
+            synchronized (spoolLock) {
+                if (stage == Stage.HEAD) return;
+                Chunk chunk;
+                while ((chunk = pending.poll()) != null) {
+                    spool(chunk);
+                    for (Map.Entry<String, RowStore> sheet : chunk.sheets.entrySet()) {
+                        returnStore(sheet.getKey(), sheet.getValue());
+                    }
+                }
+            }
+        }
+
+        private void spool(Chunk chunk) {
+            try {
+                if (spoolOut == null) {
+                    spool = Files.createTempFile("issues-listing-", ".spool");
+                    spoolOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spool), 65536));
+                }
+                for (Map.Entry<String, RowStore> sheet : chunk.sheets.entrySet()) {
+                    RowStore rows = sheet.getValue();
+                    spoolOut.writeByte(BLOCK);
+                    writeString(spoolOut, sheet.getKey());
+                    spoolOut.writeInt(rows.size());
+                    spoolOut.writeInt(rows.width());
+                    for (int r = 0; r < rows.size(); r++) {
+                        for (int c = 0; c < rows.width(); c++) {
+                            writeString(spoolOut, rows.get(r, c));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                loseRows(new UncheckedIOException("Could not spool output rows of file " + index, e));
+            }
+        }
+
+        // Takes the spool written so far and copies it into the outputs. The copy runs outside both locks, the
+        // workers start a new spool meanwhile. Returns false when nothing was spooled.
+        private boolean copySpool() {
+            Path copy;
+            synchronized (spoolLock) {
+                if (spoolOut == null) return false;
+                copy = spool;
+                try {
+                    spoolOut.writeByte(END);
+                    spoolOut.close();
+                } catch (IOException e) {
+                    loseRows(new UncheckedIOException("Could not spool output rows of file " + index, e));
+                } finally {
+                    spool = null;
+                    spoolOut = null;
+                }
+            }
+            try {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(copy), 65536))) {
+                    while (in.readByte() == BLOCK) {
+                        String sheetName = readString(in);
+                        int size = in.readInt();
+                        int width = in.readInt();
+                        RowStore rows = takeStore(sheetName);
+                        List<Object> row = new ArrayList<>(width);
+                        for (int r = 0; r < size; r++) {
+                            row.clear();
+                            for (int c = 0; c < width; c++) {
+                                row.add(readString(in));
+                            }
+                            rows.add(row);
+                        }
+                        // one block at a time, so a long spool never sits in the queues as a whole
+                        List<SheetLane> queued = new ArrayList<>();
+                        write(Collections.singletonMap(sheetName, rows), queued);
+                        awaitRoom(queued);
+                    }
+                }
+            } catch (IOException e) {
+                loseRows(new UncheckedIOException("Could not read spooled output rows of file " + index, e));
+            } finally {
+                try {
+                    Files.deleteIfExists(copy);
+                } catch (IOException ignored) {
+                    // temp file, left for the OS to clean up
+                }
+            }
+            return true;
+        }
+    }
+
+    // Queues the rows without blocking and notes each lane used in queued, for awaitRoom. Called under the lock,
+    // or by the thread draining the head, the only one adding rows at that time.
+    private void write(Map<String, RowStore> sheets, List<SheetLane> queued) {
+        for (Map.Entry<String, RowStore> sheet : sheets.entrySet()) {
+            OutputSink writer = writers.get(sheet.getKey());
+            if (writer != null && !sheet.getValue().isEmpty()) {
+                SheetLane lane = lanes.computeIfAbsent(sheet.getKey(), name -> new SheetLane(name, writer, idleStores(name)));
+                lane.queue.add(sheet.getValue());
+                queued.add(lane);
+            } else {
+                returnStore(sheet.getKey(), sheet.getValue());
+            }
+        }
+    }
+
+    // Waits, without holding the lock, until every lane rows were queued on has taken its share off the queue
+    private static void awaitRoom(List<SheetLane> queued) {
+        for (SheetLane lane : queued) {
+            try {
+                lane.room.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to queue rows for sheet " + lane.sheetName, e);
+            }
+        }
+    }
+
+    RowStore takeStore(String sheetName) {
+        RowStore rows = idleStores(sheetName).poll();
+        return rows != null ? rows : new RowStore();
+    }
+
+    private void returnStore(String sheetName, RowStore rows) {
+        recycle(idleStores(sheetName), rows);
+    }
+
+    private BlockingQueue<RowStore> idleStores(String sheetName) {
+        return idleStores.computeIfAbsent(sheetName, name -> new ArrayBlockingQueue<>(Constants.DEFAULT_WRITE_QUEUE_CHUNKS));
+    }
+
+    // A store that finds the idle queue full is left to the garbage collector
+    private static void recycle(BlockingQueue<RowStore> idle, RowStore rows) {
+        rows.clear();
+        idle.offer(rows);
+    }
+
+    /**
+     * Writer thread of one output sheet. Rows are added to the queue under the OrderedOutput lock; room holds
+     * the releasing threads back once the lane is DEFAULT_WRITE_QUEUE_CHUNKS behind, after they have let go of
+     * the lock.
+     */
+    private static class SheetLane implements Runnable {
+        final String sheetName;
+        final OutputSink writer;
+        final BlockingQueue<RowStore> queue = new LinkedBlockingQueue<>();
+        final Semaphore room = new Semaphore(Constants.DEFAULT_WRITE_QUEUE_CHUNKS);
+        final BlockingQueue<RowStore> idle;
+        final Thread thread;
+        // the first write error; the rest of the sheet is dropped
+        volatile RuntimeException error;
+
+        SheetLane(String sheetName, OutputSink writer, BlockingQueue<RowStore> idle) {
+            this.sheetName = sheetName;
+            this.writer = writer;
+            this.idle = idle;
+            this.thread = new Thread(this, "issues-listing-writer-" + sheetName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                RowStore rows;
+                try {
+                    rows = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (rows == END_OF_SHEET) return;
+                room.release();
+                if (error == null) {
+                    try {
+                        writer.appendRows(sheetName, rows);
+                    } catch (RuntimeException e) {
+                        // the queue is still drained so nothing waits on it
+                        error = e;
+                        log.error("Error writing sheet '{}' to {}", sheetName, writer.location(), e);
+                    }
+                }
+                recycle(idle, rows);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
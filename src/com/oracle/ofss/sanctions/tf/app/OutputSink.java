@@ -0,0 +1,25 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of one output (the analysis report or a filter group). Rows arrive in order, a batch at a time,
+ * from {@link OrderedOutput}. {@link ReportWriter} writes an xlsx workbook, {@link TextOutputSink} writes CSV or
+ * NDJSON files; both roll over to a new shard when a sheet outgrows its threshold.
+ */
+public interface OutputSink extends AutoCloseable {
+
+    // The header list may still be filling up when the sheet is added, it is read when the first row arrives
+    void addSheet(String sheetName, List<String> headers);
+
+    // Called for different sheets at the same time, for one sheet by one thread at a time. The store is cleared
+    // and refilled once the call returns, so it must not be kept.
+    void appendRows(String sheetName, RowStore rows);
+
+    // Where the output went, for the end-of-run message
+    String location();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,96 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes the checker lookups on to another backend and copies every answer into a snapshot, so later runs over
+ * the same test cycle can verify against it offline (see {@link SnapshotVerificationBackend}).
+ *
+ * The snapshot only covers the input files of the exporting run: only what that run looks up is exported, and
+ * with a resumed journal the lookups it skips are missing too. A later run over other inputs reads everything
+ * else as absent.
+ *
+ * Request documents reach the checker as the database returns them, so large ones are still scanned as a
+ * stream. Each is then read once more through its character stream into a temp file, which is copied into the
+ * snapshot; no document is held on heap for the export.
+ */
+public class RecordingVerificationBackend implements VerificationBackend {
+
+    private final VerificationBackend delegate;
+    private final VerificationSnapshot.Writer snapshot;
+
+    public RecordingVerificationBackend(VerificationBackend delegate, VerificationSnapshot.Writer snapshot) {
+        this.delegate = delegate;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public Session openSession() {
+        Session session = delegate.openSession();
+        return new Session() {
+            @Override
+            public void fetchRequestDocuments(List<String> requestIds, DocumentConsumer consumer) throws Exception {
+                Path spoolFile = Files.createTempFile("snapshot-documents", ".tmp");
+                try (FileChannel spool = FileChannel.open(spoolFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                     Writer text = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(spool), StandardCharsets.UTF_8), 65536)) {
+                    // start and end offset in the spool of every document, per request id in result order
+                    Map<String, List<long[]>> fetched = new LinkedHashMap<>();
+                    char[] buffer = new char[8192];
+                    session.fetchRequestDocuments(requestIds, (requestId, clob) -> {
+                        consumer.accept(requestId, clob);
+                        long start = spool.position();
+                        try (Reader reader = clob.getCharacterStream()) {
+                            int n;
+                            while ((n = reader.read(buffer)) != -1) {
+                                text.write(buffer, 0, n);
+                            }
+                        }
+                        text.flush();
+                        fetched.computeIfAbsent(requestId, k -> new ArrayList<>()).add(new long[]{start, spool.position()});
+                    });
+                    for (Map.Entry<String, List<long[]>> entry : fetched.entrySet()) {
+                        snapshot.documents(entry.getKey(), spool, entry.getValue());
+                    }
+                } finally {
+                    Files.deleteIfExists(spoolFile);
+                }
+            }
+
+            @Override
+            public Map<String, BigDecimal> fetchRunKeys(List<String> requestIds) throws Exception {
+                Map<String, BigDecimal> found = session.fetchRunKeys(requestIds);
+                for (Map.Entry<String, BigDecimal> entry : found.entrySet()) {
+                    snapshot.runKey(entry.getKey(), entry.getValue());
+                }
+                return found;
+            }
+
+            @Override
+            public boolean[] candidatesPresent(String table, String targetCol, List<BigDecimal> runKeys, List<String> nUids) throws Exception {
+                boolean[] present = session.candidatesPresent(table, targetCol, runKeys, nUids);
+                for (int i = 0; i < present.length; i++) {
+                    if (present[i]) {
+                        snapshot.candidatePresent(table, targetCol, runKeys.get(i), nUids.get(i));
+                    }
+                }
+                return present;
+            }
+
+            @Override
+            public void close() {
+                session.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,166 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.GZIPSheetDataWriter;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.streaming.SheetDataWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes an output workbook through SXSSF. Only the last {@code rowWindow} rows of each sheet are kept on
+ * heap, older rows are spilled to compressed temp files and zipped into the workbook on {@link #close()}.
+ *
+ * A sheet that reaches {@code maxRowsPerSheet} data rows continues in a numbered sheet, "Name (2)" and so on,
+ * so a large report never runs into the xlsx row limit.
+ *
+ * Different sheets may be appended to concurrently, each sheet by one thread at a time (see OrderedOutput).
+ * zipLevel sets the deflate level of the workbook and of its temp files.
+ */
+public class ReportWriter implements OutputSink {
+
+    private static final Logger log = LoggerFactory.getLogger(ReportWriter.class);
+    private final String outputFile;
+    private final SXSSFWorkbook wb;
+    private final int maxRowsPerSheet;
+    private final Map<String, SheetState> sheets = new LinkedHashMap<>();
+
+    public ReportWriter(String outputFile, int rowWindow) {
+        this(outputFile, rowWindow, Constants.XLSX_MAX_ROWS - 1);
+    }
+
+    public ReportWriter(String outputFile, int rowWindow, int maxRowsPerSheet) {
+        this(outputFile, rowWindow, maxRowsPerSheet, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ReportWriter(String outputFile, int rowWindow, int maxRowsPerSheet, int zipLevel) {
+        this.outputFile = outputFile;
+        this.wb = zipLevel == Deflater.DEFAULT_COMPRESSION ? new SXSSFWorkbook(rowWindow) : new SXSSFWorkbook(rowWindow) {
+            @Override
+            protected ZipArchiveOutputStream createArchiveOutputStream(OutputStream out) {
+                ZipArchiveOutputStream zos = super.createArchiveOutputStream(out);
+                zos.setLevel(zipLevel);
+                return zos;
+            }
+
+            @Override
+            protected SheetDataWriter createSheetDataWriter() throws IOException {
+                return new GZIPSheetDataWriter() {
+                    @Override
+                    protected OutputStream decorateOutputStream(FileOutputStream fos) throws IOException {
+                        return new GZIPOutputStream(fos) {
+                            {
+                                def.setLevel(zipLevel);
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        this.wb.setCompressTempFiles(true);
+        // one row of every sheet is taken by the header
+        this.maxRowsPerSheet = maxRowsPerSheet <= 0 ? Constants.XLSX_MAX_ROWS - 1 : Math.min(maxRowsPerSheet, Constants.XLSX_MAX_ROWS - 1);
+    }
+
+    // Sheets are created in the order they are added. The header list may still be filling up at this point,
+    // it is read when the first data row arrives.
+    @Override
+    public synchronized void addSheet(String sheetName, List<String> headers) {
+        Sheet sheet;
+        synchronized (wb) {
+            sheet = wb.createSheet(sheetName);
+        }
+        sheets.put(sheetName, new SheetState(sheet, sheetName, headers));
+    }
+
+    // The sheets are all added before the first rows arrive, so the map is only read here
+    @Override
+    public void appendRows(String sheetName, RowStore rows) {
+        long start = System.nanoTime();
+        SheetState state = sheets.get(sheetName);
+        synchronized (state) {
+            state.writeHeader();
+            for (int r = 0; r < rows.size(); r++) {
+                if (state.nextRow > maxRowsPerSheet) {
+                    state.continueOnNewSheet();
+                }
+                Row row = state.sheet.createRow(state.nextRow++);
+                for (int c = 0; c < rows.width(); c++) {
+                    row.createCell(c).setCellValue(rows.get(r, c));
+                }
+            }
+        }
+        RunMetrics.add(RunMetrics.ROWS_WRITTEN, rows.size());
+        RunMetrics.addPhase(RunMetrics.PHASE_WRITE, System.nanoTime() - start);
+    }
+
+    @Override
+    public String location() {
+        return outputFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            for (SheetState state : sheets.values()) {
+                synchronized (state) {
+                    state.writeHeader();
+                }
+            }
+            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+                wb.write(fos);
+            }
+        } finally {
+            if (!wb.dispose()) {
+                log.warn("Could not delete all temporary files for {}", outputFile);
+            }
+            wb.close();
+            RunMetrics.addPhase(RunMetrics.PHASE_FINALIZE, System.nanoTime() - start);
+        }
+    }
+
+    private class SheetState {
+        final String sheetName;
+        final List<String> headers;
+        Sheet sheet;
+        int shard = 1;
+        int nextRow;
+
+        SheetState(Sheet sheet, String sheetName, List<String> headers) {
+            this.sheet = sheet;
+            this.sheetName = sheetName;
+            this.headers = headers;
+        }
+
+        void writeHeader() {
+            if (nextRow > 0) return;
+            Row headerRow = sheet.createRow(nextRow++);
+            for (int i = 0; i < headers.size(); i++) {
+                headerRow.createCell(i).setCellValue(headers.get(i));
+            }
+        }
+
+        void continueOnNewSheet() {
+            shard++;
+            String name = sheetName + " (" + shard + ")";
+            log.info("Sheet '{}' of {} is full, continuing on '{}'", sheetName, outputFile, name);
+            synchronized (wb) {
+                sheet = wb.createSheet(name);
+            }
+            nextRow = 0;
+            writeHeader();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LRU cache of the c_request_json documents of each request id, bounded by their total size.
+ * A request id maps to all of its documents in result order; an empty list records that the request has none.
+ * Documents too large to hold are kept only as the outcome of scanning them for a set of needles.
+ */
+public class RequestJsonCache {
+
+    // rough per-entry cost of the key, list and map node on top of the document text
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, List<Document>> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long usedBytes;
+    private long hits;
+    private long misses;
+
+    public RequestJsonCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Documents of the request, or null when they have not been fetched (or were evicted)
+    public synchronized List<Document> get(String requestId) {
+        List<Document> documents = entries.get(requestId);
+        if (documents == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return documents;
+    }
+
+    public synchronized void put(String requestId, List<Document> documents) {
+        long size = sizeOf(requestId, documents);
+        if (size > maxBytes) return;
+        List<Document> previous = entries.put(requestId, Collections.unmodifiableList(documents));
+        if (previous != null) {
+            usedBytes -= sizeOf(requestId, previous);
+        }
+        usedBytes += size;
+        Iterator<Map.Entry<String, List<Document>>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, List<Document>> eldest = it.next();
+            usedBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized String stats() {
+        return String.format("%d entries, %d KB, %d hits, %d misses", entries.size(), usedBytes / 1024, hits, misses);
+    }
+
+    private static long sizeOf(String requestId, List<Document> documents) {
+        long size = ENTRY_OVERHEAD_BYTES + 2L * requestId.length();
+        for (Document document : documents) {
+            size += document.size();
+        }
+        return size;
+    }
+
+    // A c_request_json document, either its full text or which of the scanned needles it contains
+    public static class Document {
+        private final String text;
+        private final Set<String> scanned;
+        private final Set<String> found;
+
+        private Document(String text, Set<String> scanned, Set<String> found) {
+            this.text = text;
+            this.scanned = scanned;
+            this.found = found;
+        }
+
+        public static Document ofText(String text) {
+            return new Document(text, null, null);
+        }
+
+        public static Document ofScan(Set<String> scanned, Set<String> found) {
+            return new Document(null, scanned, found);
+        }
+
+        // Whether contains() can answer for every one of the needles
+        public boolean covers(Collection<String> needles) {
+            return text != null || scanned.containsAll(needles);
+        }
+
+        public boolean contains(String needle) {
+            return text != null ? text.contains(needle) : found.contains(needle);
+        }
+
+        long size() {
+            if (text != null) return 2L * text.length();
+            long size = 0;
+            for (String needle : scanned) {
+                size += ENTRY_OVERHEAD_BYTES + 2L * needle.length();
+            }
+            return size;
+        }
+    }
+}
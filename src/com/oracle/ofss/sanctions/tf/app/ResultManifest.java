@@ -0,0 +1,411 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output rows of previously processed input files, kept for incremental runs. The manifest maps each input
+ * path to the size, mtime and SHA-256 it had when it was processed and to a gzip file holding its header
+ * columns and the rows it produced for every output sheet. A file whose size matches and whose mtime (or,
+ * failing that, content hash) is unchanged is replayed from that file instead of being parsed and verified.
+ *
+ * The size, mtime and hash stored are the ones taken before the input was parsed, and the results are only
+ * stored if size and mtime are still the same afterwards, so a file rewritten while it was being processed
+ * (e.g. in watch mode) is never linked to results of its old content.
+ */
+public class ResultManifest {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultManifest.class);
+    private static final int FORMAT_VERSION = 1;
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+
+    private final Path directory;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private ResultManifest(Path directory) {
+        this.directory = directory;
+    }
+
+    public static ResultManifest load(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        ResultManifest manifest = new ResultManifest(directory);
+        Path file = directory.resolve(Constants.MANIFEST_FILE_NAME);
+        if (Files.exists(file)) {
+            Properties props = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+            for (String path : props.stringPropertyNames()) {
+                Entry entry = Entry.parse(props.getProperty(path));
+                if (entry != null) {
+                    manifest.entries.put(path, entry);
+                }
+            }
+        }
+        log.info("Loaded result manifest with {} entries from {}", manifest.entries.size(), directory);
+        return manifest;
+    }
+
+    // Writes the manifest for the given inputs; entries and result files of inputs that are gone are dropped
+    public synchronized void save(List<Path> inputs) throws IOException {
+        Set<String> keep = new HashSet<>();
+        for (Path input : inputs) {
+            keep.add(key(input));
+        }
+        Properties props = new Properties();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> e = it.next();
+            if (keep.contains(e.getKey())) {
+                props.setProperty(e.getKey(), e.getValue().format());
+            } else {
+                Files.deleteIfExists(directory.resolve(e.getValue().resultFile));
+                it.remove();
+            }
+        }
+        Path tmp = directory.resolve(Constants.MANIFEST_FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(writer, "Issues listing utility result manifest");
+        }
+        Files.move(tmp, directory.resolve(Constants.MANIFEST_FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Size and mtime of the input as it is about to be read, or null when it cannot be checked
+    public InputState inputState(Path input) {
+        try {
+            return new InputState(input, Files.size(input), Files.getLastModifiedTime(input).toMillis());
+        } catch (IOException e) {
+            log.warn("Could not check {} against the result manifest: {}", input, e.getMessage());
+            return null;
+        }
+    }
+
+    // Stored results of the input when it is unchanged since they were recorded, otherwise null. A result file
+    // of the wrong length is rejected here; other damage shows while it is replayed.
+    public StoredResults find(InputState input) {
+        Entry entry = entries.get(key(input.file));
+        if (entry == null) return null;
+        try {
+            if (input.size != entry.size) return null;
+            if (input.mtime != entry.mtime) {
+                // touched or copied: only a different content counts as a change
+                if (!input.sha256().equals(entry.sha256)) return null;
+                entries.put(key(input.file), new Entry(input.size, input.mtime, entry.sha256, entry.resultFile, entry.resultSize));
+            }
+            Path results = directory.resolve(entry.resultFile);
+            if (!Files.exists(results)) return null;
+            if (entry.resultSize >= 0 && Files.size(results) != entry.resultSize) {
+                log.warn("Ignoring damaged result file {}: {} bytes, {} stored", results, Files.size(results), entry.resultSize);
+                return null;
+            }
+            return new StoredResults(results);
+        } catch (IOException e) {
+            log.warn("Could not check {} against the result manifest: {}", input.file, e.getMessage());
+            return null;
+        }
+    }
+
+    // Drops the stored results of an input, e.g. when they turned out damaged during the replay
+    public void invalidate(Path input) {
+        Entry entry = entries.remove(key(input));
+        if (entry == null) return;
+        try {
+            Files.deleteIfExists(directory.resolve(entry.resultFile));
+        } catch (IOException e) {
+            log.warn("Could not delete {}: {}", entry.resultFile, e.getMessage());
+        }
+    }
+
+    // Starts recording the results of an input file; sheets maps each output sheet to its headers. The input's
+    // hash must have been taken, with InputState.hash(), before the file was parsed.
+    public Recorder record(InputState input, List<String> columns, Map<String, List<String>> sheets) throws IOException {
+        String name = sha256(key(input.file).getBytes(StandardCharsets.UTF_8)) + Constants.RESULTS_EXTENSION;
+        return new Recorder(input, name, columns, sheets);
+    }
+
+    private static String key(Path input) {
+        return input.toAbsolutePath().normalize().toString();
+    }
+
+    static String sha256(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+            return hex(digest.digest());
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // Strings are length-prefixed UTF-8; writeUTF would cap a cell at 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeList(DataOutputStream out, List<?> values) throws IOException {
+        out.writeInt(values.size());
+        for (Object value : values) {
+            writeString(out, String.valueOf(value));
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<String> values = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * Size and mtime of an input taken before it is read, and its content hash once asked for.
+     */
+    public static class InputState {
+        final Path file;
+        final long size;
+        final long mtime;
+        private volatile String sha256;
+
+        InputState(Path file, long size, long mtime) {
+            this.file = file;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        synchronized String sha256() throws IOException {
+            if (sha256 == null) {
+                sha256 = ResultManifest.sha256(file);
+            }
+            return sha256;
+        }
+
+        // Takes the hash now, before the file is parsed; false when the file cannot be read
+        public boolean hash() {
+            try {
+                sha256();
+                return true;
+            } catch (IOException e) {
+                log.warn("Could not hash {}, its results will not be stored: {}", file, e.getMessage());
+                return false;
+            }
+        }
+
+        boolean unchanged() throws IOException {
+            return Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == mtime;
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final String sha256;
+        final String resultFile;
+        // length of the result file, -1 for entries written before it was kept
+        final long resultSize;
+
+        Entry(long size, long mtime, String sha256, String resultFile, long resultSize) {
+            this.size = size;
+            this.mtime = mtime;
+            this.sha256 = sha256;
+            this.resultFile = resultFile;
+            this.resultSize = resultSize;
+        }
+
+        String format() {
+            return size + "|" + mtime + "|" + sha256 + "|" + resultFile + "|" + resultSize;
+        }
+
+        static Entry parse(String value) {
+            String[] parts = value.split("\\|");
+            if (parts.length != 4 && parts.length != 5) return null;
+            long resultSize = parts.length == 5 ? Long.parseLong(parts[4]) : -1;
+            return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], parts[3], resultSize);
+        }
+    }
+
+    /**
+     * Rows of one input file as they are produced, possibly from several worker threads. The result file only
+     * enters the manifest on {@link #commit()} and only if every row was fully verified.
+     */
+    public class Recorder {
+        private final InputState input;
+        private final String resultFile;
+        private final Path tmp;
+        private final Map<String, Integer> sheetIndex = new HashMap<>();
+        private DataOutputStream out;
+        private boolean incomplete;
+
+        Recorder(InputState input, String resultFile, List<String> columns, Map<String, List<String>> sheets) throws IOException {
+            this.input = input;
+            this.resultFile = resultFile;
+            this.tmp = directory.resolve(resultFile + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))));
+            out.writeInt(FORMAT_VERSION);
+            writeList(out, columns);
+            out.writeInt(sheets.size());
+            for (Map.Entry<String, List<String>> sheet : sheets.entrySet()) {
+                sheetIndex.put(sheet.getKey(), sheetIndex.size());
+                writeString(out, sheet.getKey());
+                writeList(out, sheet.getValue());
+            }
+        }
+
+        public synchronized void record(String sheetName, RowStore rows) {
+            if (out == null) return;
+            try {
+                int sheet = sheetIndex.get(sheetName);
+                for (int r = 0; r < rows.size(); r++) {
+                    out.writeByte(ROW);
+                    out.writeInt(sheet);
+                    out.writeInt(rows.width());
+                    for (int c = 0; c < rows.width(); c++) {
+                        writeString(out, rows.get(r, c));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Could not record results of {}: {}", input.file, e.getMessage());
+                discard();
+            }
+        }
+
+        // Results with failed lookups or rows are not reused, the file is verified again on the next run
+        public synchronized void markIncomplete() {
+            incomplete = true;
+        }
+
+        public synchronized void commit() {
+            if (out == null) return;
+            if (incomplete) {
+                log.info("Not storing results of {}: some rows could not be verified", input.file);
+                discard();
+                return;
+            }
+            try {
+                out.writeByte(END);
+                out.close();
+                out = null;
+                if (input.sha256 == null || !input.unchanged()) {
+                    log.info("Not storing results of {}: the file changed while it was being processed", input.file);
+                    discard();
+                    return;
+                }
+                long resultSize = Files.size(tmp);
+                Files.move(tmp, directory.resolve(resultFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                entries.put(key(input.file), new Entry(input.size, input.mtime, input.sha256, resultFile, resultSize));
+            } catch (IOException e) {
+                log.warn("Could not store results of {}: {}", input.file, e.getMessage());
+                discard();
+            }
+        }
+
+        public synchronized void discard() {
+            try {
+                if (out != null) out.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                log.warn("Could not delete {}: {}", tmp, e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Reader over a stored result file: the header columns, then the headers of each stored sheet,
+     * then the rows in the order they were recorded.
+     */
+    public static class StoredResults implements Closeable {
+        private final DataInputStream in;
+        private final List<String> columns;
+        private final List<String> sheetNames = new ArrayList<>();
+        private final Map<String, List<String>> sheetHeaders = new LinkedHashMap<>();
+
+        StoredResults(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Unsupported result file version in " + file);
+                }
+                columns = readList(in);
+                int sheets = in.readInt();
+                for (int i = 0; i < sheets; i++) {
+                    String name = readString(in);
+                    sheetNames.add(name);
+                    sheetHeaders.put(name, readList(in));
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        public List<String> columns() {
+            return columns;
+        }
+
+        public Map<String, List<String>> sheetHeaders() {
+            return sheetHeaders;
+        }
+
+        public interface RowConsumer {
+            void accept(String sheetName, List<Object> row);
+        }
+
+        // Throws on a damaged file, at the latest once the end marker is reached and the gzip CRC is checked
+        public void forEachRow(RowConsumer consumer) throws IOException {
+            while (in.readByte() == ROW) {
+                int sheet = in.readInt();
+                if (sheet < 0 || sheet >= sheetNames.size()) {
+                    throw new IOException("Unknown sheet " + sheet + " in stored results");
+                }
+                consumer.accept(sheetNames.get(sheet), new ArrayList<>(readList(in)));
+            }
+            // reading past the end marker makes the gzip stream check its trailer
+            if (in.read() != -1) {
+                throw new IOException("Unexpected data after the end of the stored results");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
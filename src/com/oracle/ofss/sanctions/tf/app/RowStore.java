@@ -0,0 +1,93 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact store for output rows. Every cell is kept as an int code in fixed-size chunks; columns with few
+ * distinct values (watchlist, statuses, Input to MS, Comment...) are dictionary encoded so each value is held
+ * once, while a column that turns out to exceed {@link Constants#DEFAULT_DICTIONARY_MAX_CODES} distinct values
+ * stops growing its dictionary and keeps its further values as they are.
+ *
+ * Not thread-safe. {@link #clear()} drops the rows but keeps the dictionaries for the next batch.
+ */
+public class RowStore {
+
+    private static final int CHUNK_ROWS = 256;
+
+    private int width = -1;
+    private ColumnDictionary[] dictionaries;
+    private final List<int[]> chunks = new ArrayList<>();
+    // values of columns that are no longer dictionary encoded, referenced by negative codes
+    private final List<String> rawValues = new ArrayList<>();
+    private int size;
+
+    public void add(List<?> row) {
+        if (width < 0) {
+            width = row.size();
+            dictionaries = new ColumnDictionary[width];
+            for (int c = 0; c < width; c++) {
+                dictionaries[c] = new ColumnDictionary();
+            }
+        }
+        if (row.size() != width) {
+            throw new IllegalArgumentException("Row has " + row.size() + " columns, expected " + width);
+        }
+        int offset = (size % CHUNK_ROWS) * width;
+        if (offset == 0 && size / CHUNK_ROWS == chunks.size()) {
+            chunks.add(new int[CHUNK_ROWS * width]);
+        }
+        int[] chunk = chunks.get(size / CHUNK_ROWS);
+        for (int c = 0; c < width; c++) {
+            chunk[offset + c] = encode(c, String.valueOf(row.get(c)));
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int width() {
+        return Math.max(width, 0);
+    }
+
+    public String get(int row, int column) {
+        int code = chunks.get(row / CHUNK_ROWS)[(row % CHUNK_ROWS) * width + column];
+        return code >= 0 ? dictionaries[column].values.get(code) : rawValues.get(-code - 1);
+    }
+
+    public void clear() {
+        // keep the first chunk for the next batch
+        while (chunks.size() > 1) {
+            chunks.remove(chunks.size() - 1);
+        }
+        rawValues.clear();
+        size = 0;
+    }
+
+    private int encode(int column, String value) {
+        ColumnDictionary dictionary = dictionaries[column];
+        Integer code = dictionary.codes.get(value);
+        if (code != null) return code;
+        if (dictionary.values.size() < Constants.DEFAULT_DICTIONARY_MAX_CODES) {
+            code = dictionary.values.size();
+            dictionary.codes.put(value, code);
+            dictionary.values.add(value);
+            return code;
+        }
+        rawValues.add(value);
+        return -rawValues.size();
+    }
+
+    private static class ColumnDictionary {
+        final Map<String, Integer> codes = new HashMap<>();
+        final List<String> values = new ArrayList<>();
+    }
+}
@@ -0,0 +1,294 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, phase timings and latency histograms of one run, written as a JSON report at the end and
+ * optionally published over JMX. All recording methods are safe to call from any worker thread.
+ */
+public class RunMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(RunMetrics.class);
+
+    // phase and histogram names
+    public static final String PHASE_DIRECTORY_SCAN = "directoryScan";
+    public static final String PHASE_PARSE = "parse";
+    // time readers spent waiting for the workers to catch up, not counted as parsing
+    public static final String PHASE_BACKPRESSURE = "backpressure";
+    public static final String PHASE_ANALYSIS = "analysis";
+    public static final String PHASE_EXTRACTION = "extraction";
+    public static final String PHASE_WRITE = "write";
+    public static final String PHASE_FINALIZE = "finalize";
+    public static final String CHECKER1_QUERY = "checker1Query";
+    public static final String RUN_KEY_QUERY = "runKeyQuery";
+    public static final String CHECKER2_QUERY = "checker2Query";
+    public static final String POOL_WAIT = "poolWait";
+
+    // counter names
+    public static final String ROWS_READ = "rowsRead";
+    public static final String ROWS_REPLAYED = "rowsReplayed";
+    public static final String ROWS_OS_FAIL = "rowsOsFail";
+    public static final String ROWS_OT_FAIL = "rowsOtFail";
+    public static final String ROWS_FILTERED = "rowsFiltered";
+    public static final String ROWS_WRITTEN = "rowsWritten";
+    public static final String DB_TIMEOUTS = "dbTimeouts";
+    public static final String LOOKUP_FAILURES = "lookupFailures";
+    public static final String DB_RETRIES = "dbRetries";
+    public static final String LIMITER_DEFERRALS = "limiterDeferrals";
+
+    private static volatile long startNanos = System.nanoTime();
+    private static final Map<String, Timer> phases = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, FileStats> files = new ConcurrentHashMap<>();
+
+    public static void addPhase(String phase, long nanos) {
+        phases.computeIfAbsent(phase, k -> new Timer()).add(nanos);
+    }
+
+    public static void recordLatency(String name, long nanos) {
+        histograms.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    public static void recordFile(Path file, long rows, long nanos, boolean replayed) {
+        files.put(file.toString(), new FileStats(rows, nanos, replayed));
+    }
+
+    // Starts over for the next batch of a watch-mode run, so each report covers its own batch
+    public static void reset() {
+        startNanos = System.nanoTime();
+        phases.clear();
+        histograms.clear();
+        counters.clear();
+        files.clear();
+    }
+
+    public static long count(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    // Registers the metrics as an MXBean so they can be watched with jconsole or any JMX client during the run
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Jmx(), new ObjectName(Constants.METRICS_MBEAN_NAME));
+            log.info("Run metrics published over JMX as {}", Constants.METRICS_MBEAN_NAME);
+        } catch (Exception e) {
+            log.warn("Could not register run metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    public static void writeReport(Path file) {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+            log.info("Run metrics written to {}", file);
+        } catch (IOException e) {
+            log.error("Error writing run metrics to {}: {}", file, e.getMessage());
+        }
+    }
+
+    // One line per phase so the slowest stage stands out in the log
+    public static void logSummary() {
+        for (Map.Entry<String, Timer> phase : phases.entrySet()) {
+            log.info("Phase {}: {} ms over {} calls", phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue().total.sum()), phase.getValue().count.sum());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            Histogram h = histogram.getValue();
+            log.info("Latency {}: count={}, p50={} ms, p95={} ms, max={} ms", histogram.getKey(), h.count.sum(),
+                    millis(h.percentile(0.50)), millis(h.percentile(0.95)), millis(h.max.get()));
+        }
+    }
+
+    static String toJson() {
+        long elapsed = System.nanoTime() - startNanos;
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\n");
+        sb.append("  \"elapsedMs\": ").append(millis(elapsed)).append(",\n");
+        long rowsRead = count(ROWS_READ);
+        sb.append("  \"rowsPerSecond\": ").append(elapsed > 0 ? String.format(Locale.ROOT, "%.1f", rowsRead * 1e9 / elapsed) : "0").append(",\n");
+
+        sb.append("  \"counters\": {");
+        String sep = "\n";
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            sb.append(sep).append("    ").append(quote(counter.getKey())).append(": ").append(counter.getValue().sum());
+            sep = ",\n";
+        }
+        sb.append("\n  },\n");
+
+        sb.append("  \"phases\": {");
+        sep = "\n";
+        for (Map.Entry<String, Timer> phase : phases.entrySet()) {
+            Timer t = phase.getValue();
+            sb.append(sep).append("    ").append(quote(phase.getKey())).append(": {\"totalMs\": ").append(millis(t.total.sum()))
+                    .append(", \"calls\": ").append(t.count.sum()).append(", \"maxMs\": ").append(millis(t.max.get())).append('}');
+            sep = ",\n";
+        }
+        sb.append("\n  },\n");
+
+        sb.append("  \"latencies\": {");
+        sep = "\n";
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            Histogram h = histogram.getValue();
+            long count = h.count.sum();
+            sb.append(sep).append("    ").append(quote(histogram.getKey())).append(": {\"count\": ").append(count)
+                    .append(", \"meanMs\": ").append(count > 0 ? millis(h.total.sum() / count) : "0")
+                    .append(", \"p50Ms\": ").append(millis(h.percentile(0.50)))
+                    .append(", \"p95Ms\": ").append(millis(h.percentile(0.95)))
+                    .append(", \"p99Ms\": ").append(millis(h.percentile(0.99)))
+                    .append(", \"maxMs\": ").append(millis(h.max.get())).append('}');
+            sep = ",\n";
+        }
+        sb.append("\n  },\n");
+
+        sb.append("  \"pool\": ").append(SQLUtility.poolStatsJson()).append(",\n");
+
+        sb.append("  \"files\": [");
+        sep = "\n";
+        for (Map.Entry<String, FileStats> file : new TreeMap<>(files).entrySet()) {
+            FileStats f = file.getValue();
+            sb.append(sep).append("    {\"path\": ").append(quote(file.getKey())).append(", \"rows\": ").append(f.rows)
+                    .append(", \"ms\": ").append(millis(f.nanos)).append(", \"replayed\": ").append(f.replayed).append('}');
+            sep = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class Timer {
+        final LongAdder total = new LongAdder();
+        final LongAdder count = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void add(long nanos) {
+            total.add(nanos);
+            count.increment();
+            max.accumulate(nanos);
+        }
+    }
+
+    // Latencies in power-of-two microsecond buckets; percentiles are reported as the upper bound of their bucket
+    private static class Histogram extends Timer {
+        final AtomicLongArray buckets = new AtomicLongArray(40);
+
+        void record(long nanos) {
+            add(nanos);
+            long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+            buckets.incrementAndGet(Math.min(buckets.length() - 1, 63 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        long percentile(double p) {
+            long count = this.count.sum();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(max.get(), TimeUnit.MICROSECONDS.toNanos(1L << (i + 1)));
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private static class FileStats {
+        final long rows;
+        final long nanos;
+        final boolean replayed;
+
+        FileStats(long rows, long nanos, boolean replayed) {
+            this.rows = rows;
+            this.nanos = nanos;
+            this.replayed = replayed;
+        }
+    }
+
+    public interface RunMetricsMXBean {
+        Map<String, Long> getCounters();
+
+        Map<String, Long> getPhaseMillis();
+
+        Map<String, Long> getP95LatencyMicros();
+
+        String getReportJson();
+    }
+
+    static class Jmx implements RunMetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+                values.put(counter.getKey(), counter.getValue().sum());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getPhaseMillis() {
+            Map<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, Timer> phase : phases.entrySet()) {
+                values.put(phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue().total.sum()));
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getP95LatencyMicros() {
+            Map<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+                values.put(histogram.getKey(), TimeUnit.NANOSECONDS.toMicros(histogram.getValue().percentile(0.95)));
+            }
+            return values;
+        }
+
+        @Override
+        public String getReportJson() {
+            return toJson();
+        }
+    }
+}
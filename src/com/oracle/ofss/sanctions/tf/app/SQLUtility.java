@@ -2,80 +2,219 @@ package com.oracle.ofss.sanctions.tf.app;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileReader;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 
 public class SQLUtility {
     private static final Logger logger = LoggerFactory.getLogger(SQLUtility.class);
-    private static HikariDataSource dataSource;
+    private static volatile Properties settings;
+    private static volatile HikariDataSource dataSource;
 
-    static {
-        try {
-            Properties props = new Properties();
-            try (FileReader reader = new FileReader(Constants.CONFIG_FILE_PATH)) {
-                props.load(reader);
+    // When set, limits how many sessions hold a connection at once (see VerificationSession)
+    private static volatile Semaphore sessionPermits;
+
+    // config.properties, loaded on first use
+    private static Properties settings() {
+        Properties props = settings;
+        if (props == null) {
+            synchronized (SQLUtility.class) {
+                props = settings;
+                if (props == null) {
+                    props = new Properties();
+                    try (FileReader reader = new FileReader(Constants.CONFIG_FILE_PATH)) {
+                        props.load(reader);
+                    } catch (Exception e) {
+                        logger.error("Error loading database settings: {}", e.getMessage(), e);
+                        throw new RuntimeException(e);
+                    }
+                    settings = props;
+                }
             }
+        }
+        return props;
+    }
+
+    private static int intSetting(String name, int defaultValue) {
+        return Integer.parseInt(settings().getProperty(name, String.valueOf(defaultValue)).trim());
+    }
+
+    // 10 connections as before, more when there are more worker threads. A smaller dbPoolSize is raised to
+    // the thread count so no worker queues for a connection.
+    public static int getMaximumPoolSize() {
+        int threads = intSetting(Constants.PROP_THREAD_POOL_SIZE, 4);
+        return Math.max(Math.max(1, threads), intSetting(Constants.PROP_DB_POOL_SIZE, Math.max(Constants.DEFAULT_DB_POOL_SIZE, threads)));
+    }
+
+    public static int getFetchSize() {
+        return intSetting(Constants.PROP_DB_FETCH_SIZE, Constants.DEFAULT_FETCH_SIZE);
+    }
 
+    // The pool is only started by the first database check, so runs that never verify skip the wallet and pool startup
+    private static HikariDataSource dataSource() {
+        HikariDataSource ds = dataSource;
+        if (ds == null) {
+            synchronized (SQLUtility.class) {
+                ds = dataSource;
+                if (ds == null) {
+                    ds = createDataSource();
+                    dataSource = ds;
+                }
+            }
+        }
+        return ds;
+    }
+
+    private static HikariDataSource createDataSource() {
+        try {
+            Properties props = settings();
             String jdbcUrl = props.getProperty(Constants.JDBC_URL);
             String jdbcDriver = props.getProperty(Constants.JDBC_DRIVER);
             String walletname = props.getProperty(Constants.WALLET_NAME);
             String tnsAdminPath = Constants.PARENT_DIRECTORY + File.separator + Constants.BIN_FOLDER_NAME + File.separator + walletname;
 
+            int threads = intSetting(Constants.PROP_THREAD_POOL_SIZE, 4);
+            int poolSize = getMaximumPoolSize();
+            int configured = intSetting(Constants.PROP_DB_POOL_SIZE, poolSize);
+            if (configured < poolSize) {
+                logger.warn("{}={} is smaller than {}={}, using {} connections",
+                        Constants.PROP_DB_POOL_SIZE, configured, Constants.PROP_THREAD_POOL_SIZE, threads, poolSize);
+            }
+            int minIdle = Math.min(poolSize, intSetting(Constants.PROP_DB_MIN_IDLE, Math.min(poolSize, Constants.DEFAULT_DB_MIN_IDLE)));
+
             HikariConfig config = new HikariConfig();
             config.setJdbcUrl(jdbcUrl);
             config.setDriverClassName(jdbcDriver);
             config.addDataSourceProperty(Constants.TNS_ADMIN, tnsAdminPath);
 
-            // Optimized connection pool settings for bulk operations
-            config.setMaximumPoolSize(10);
-            config.setMinimumIdle(5);
-            config.setConnectionTimeout(300000); // 5 minutes
+            // Connection pool settings for bulk operations, overridable from config.properties
+            config.setMaximumPoolSize(poolSize);
+            config.setMinimumIdle(minIdle);
+            config.setConnectionTimeout(intSetting(Constants.PROP_DB_CONNECTION_TIMEOUT_MS, Constants.DEFAULT_DB_CONNECTION_TIMEOUT_MS));
             config.setIdleTimeout(600000); // 10 minutes
             config.setMaxLifetime(1800000); // 30 minutes
             config.setLeakDetectionThreshold(60000);
 
             // Performance optimizations and timeout settings
-            config.addDataSourceProperty("oracle.jdbc.ReadTimeout", "60000");
+            config.addDataSourceProperty("oracle.jdbc.ReadTimeout", String.valueOf(intSetting(Constants.PROP_DB_READ_TIMEOUT_MS, Constants.DEFAULT_DB_READ_TIMEOUT_MS)));
             config.addDataSourceProperty("oracle.net.CONNECT_TIMEOUT", "10000");
             config.addDataSourceProperty("oracle.net.authenticationTimeout", "120000"); // 120 seconds for authentication
             config.addDataSourceProperty("oracle.jdbc.defaultNChar", "true");
+            // Keep parsed cursors on each physical connection so batch statements are not re-parsed per checkout
+            config.addDataSourceProperty("oracle.jdbc.implicitStatementCacheSize", String.valueOf(Constants.DEFAULT_STATEMENT_CACHE_SIZE));
+            // Bring c_request_json inline with the row instead of an extra round trip per LOB
+            config.addDataSourceProperty("oracle.jdbc.defaultLobPrefetchSize", String.valueOf(Constants.DEFAULT_LOB_PREFETCH_SIZE));
 
-            dataSource = new HikariDataSource(config);
+            logger.info("Starting database connection pool: maximumPoolSize={}, minimumIdle={}", poolSize, minIdle);
+            return new HikariDataSource(config);
         } catch (Exception e) {
             logger.error("Error initializing connection pool: {}", e.getMessage(), e);
             throw new RuntimeException(e);
         }
     }
 
+    // Pool gauges for the run metrics report, "null" when the pool was never started
+    static String poolStatsJson() {
+        HikariDataSource ds = dataSource;
+        if (ds == null || ds.getHikariPoolMXBean() == null) return "null";
+        HikariPoolMXBean pool = ds.getHikariPoolMXBean();
+        return "{\"maximumPoolSize\": " + ds.getMaximumPoolSize()
+                + ", \"activeConnections\": " + pool.getActiveConnections()
+                + ", \"idleConnections\": " + pool.getIdleConnections()
+                + ", \"threadsAwaitingConnection\": " + pool.getThreadsAwaitingConnection() + "}";
+    }
+
+    public static void limitConcurrentSessions(int permits) {
+        sessionPermits = new Semaphore(permits);
+    }
+
+    public static VerificationSession openSession() {
+        return new VerificationSession();
+    }
+
+    // A single checkout, bounded by dbConnectionTimeoutMs. A failed checkout surfaces as
+    // SQLTransientConnectionException and the batch is retried with backoff by BatchVerifier,
+    // so no worker thread sleeps here between attempts.
     public static Connection getDbConnection() throws Exception {
-        int maxRetries = 3;
-        long retryDelayMs = 5000; // 5 seconds
+        long start = System.nanoTime();
+        try {
+            Connection connection = dataSource().getConnection();
+            logger.debug(Constants.CONNECTION_ESTABLISHED);
+            return connection;
+        } catch (Exception e) {
+            logger.error("Failed to establish database connection: {}", e.getMessage());
+            throw e;
+        } finally {
+            RunMetrics.recordLatency(RunMetrics.POOL_WAIT, System.nanoTime() - start);
+        }
+    }
 
-        for (int attempt = 1; attempt <= maxRetries; attempt++) {
-            try {
-                Connection connection = dataSource.getConnection();
-                logger.info(Constants.CONNECTION_ESTABLISHED);
-                return connection;
-            } catch (Exception e) {
-                if (attempt == maxRetries) {
-                    logger.error("Failed to establish database connection after {} attempts", maxRetries);
-                    throw e;
+    /**
+     * Connection and prepared statements used by one worker for the length of a verification batch.
+     * The connection is checked out on the first statement and returned to the pool on close.
+     */
+    public static class VerificationSession implements AutoCloseable {
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private Semaphore permits;
+        private Connection connection;
+
+        public PreparedStatement prepare(String query) throws Exception {
+            PreparedStatement ps = statements.get(query);
+            if (ps == null) {
+                ps = connection().prepareStatement(query);
+                ps.setFetchSize(getFetchSize());
+                statements.put(query, ps);
+            } else {
+                ps.clearParameters();
+            }
+            return ps;
+        }
+
+        private Connection connection() throws Exception {
+            if (connection == null) {
+                Semaphore limit = sessionPermits;
+                if (limit != null) {
+                    limit.acquire();
+                    permits = limit;
                 }
-                logger.warn("Database connection attempt {} failed: {}. Retrying in {} ms...", attempt, e.getMessage(), retryDelayMs);
+                connection = getDbConnection();
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            for (PreparedStatement ps : statements.values()) {
                 try {
-                    Thread.sleep(retryDelayMs);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException("Interrupted while waiting to retry connection", ie);
+                    ps.close();
+                } catch (SQLException e) {
+                    logger.warn("Error closing statement: {}", e.getMessage());
+                }
+            }
+            statements.clear();
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                logger.warn("Error closing database connection: {}", e.getMessage());
+            } finally {
+                connection = null;
+                if (permits != null) {
+                    permits.release();
+                    permits = null;
                 }
             }
         }
-        // This should never be reached
-        throw new RuntimeException("Unexpected error in connection retry logic");
     }
 }
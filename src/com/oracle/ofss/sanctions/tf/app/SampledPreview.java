@@ -0,0 +1,237 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates the issue breakdown of a run from a sample instead of verifying every failing row.
+ *
+ * Each input file is read once and its OS and OT failures are split into strata by file, watchlist and sheet.
+ * A uniform random sample of at most sampleSize failures is kept per stratum (reservoir sampling), and only the
+ * sampled failures are looked up with checker1/checker2. The comment counts of each stratum are scaled up to its
+ * number of failures and summed, with a 95% confidence interval from the stratified variance (normal
+ * approximation, finite population correction). A stratum sampled in full contributes its exact counts.
+ */
+public class SampledPreview {
+
+    private static final Logger log = LoggerFactory.getLogger(SampledPreview.class);
+
+    // Comments an OS or OT failure can get, in report order
+    static final List<String> OS_COMMENTS = Arrays.asList(Constants.TF_ISSUE, Constants.MATCHING_ISSUE);
+    static final List<String> OT_COMMENTS = Arrays.asList(Constants.SCORING_ENGINE_ISSUE, Constants.OT_ISSUE, Constants.TF_ISSUE);
+    static final List<String> ESTIMATE_HEADERS = Arrays.asList("Sheet", "Comment", "Estimated rows", "95% CI low", "95% CI high", "Failing rows", "Sampled rows");
+    static final List<String> STRATA_HEADERS = Arrays.asList("File", "Watchlist", "Sheet", "Failing rows", "Sampled rows",
+            Constants.TF_ISSUE, Constants.MATCHING_ISSUE, Constants.SCORING_ENGINE_ISSUE, Constants.OT_ISSUE);
+
+    /**
+     * The OS or OT failures of one watchlist in one file.
+     */
+    static class Stratum {
+        final String file;
+        final String watchlist;
+        final String sheet;
+        final ColumnPlan plan;
+        final List<ExcelProcessor.PendingRow> sample = new ArrayList<>();
+        final Map<String, Integer> comments = new HashMap<>();
+        long population;
+
+        Stratum(String file, String watchlist, String sheet, ColumnPlan plan) {
+            this.file = file;
+            this.watchlist = watchlist;
+            this.sheet = sheet;
+            this.plan = plan;
+        }
+
+        // Algorithm R: after n offers every failure seen is in the sample with probability sampleSize / n
+        void offer(ExcelProcessor.PendingRow row, int sampleSize, SplittableRandom random) {
+            population++;
+            if (sample.size() < sampleSize) {
+                sample.add(row);
+            } else {
+                long slot = random.nextLong(population);
+                if (slot < sampleSize) {
+                    sample.set((int) slot, row);
+                }
+            }
+        }
+    }
+
+    // Samples the files, verifies the sample and writes the estimates to outputFile. seed makes the sample
+    // repeatable; each file draws from its own stream so the sample does not depend on thread timing.
+    static void run(List<Path> files, String outputFile, int sampleSize, long seed) {
+        List<List<Stratum>> perFile = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            perFile.add(Collections.emptyList());
+            indices.add(i);
+        }
+        ExcelProcessor.scheduler.runAll(indices, index -> {
+            try {
+                perFile.set(index, sampleFile(files.get(index), sampleSize, new SplittableRandom(seed + index * Constants.PREVIEW_SEED_STEP)));
+            } catch (Exception e) {
+                System.err.println("Error sampling file " + files.get(index) + ": " + e.getMessage());
+            }
+        });
+        List<Stratum> strata = new ArrayList<>();
+        for (List<Stratum> fileStrata : perFile) {
+            strata.addAll(fileStrata);
+        }
+
+        verify(strata);
+
+        OutputSink sink = ExcelProcessor.openSink(outputFile);
+        try {
+            sink.addSheet(Constants.SHEET_PREVIEW, ESTIMATE_HEADERS);
+            sink.addSheet(Constants.SHEET_PREVIEW_STRATA, STRATA_HEADERS);
+            sink.appendRows(Constants.SHEET_PREVIEW, estimates(strata, Constants.SHEET_OS, OS_COMMENTS));
+            sink.appendRows(Constants.SHEET_PREVIEW, estimates(strata, Constants.SHEET_OT, OT_COMMENTS));
+            sink.appendRows(Constants.SHEET_PREVIEW_STRATA, strataRows(strata));
+        } finally {
+            try {
+                sink.close();
+                System.out.println("Preview written to: " + sink.location());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static List<Stratum> sampleFile(Path filePath, int sampleSize, SplittableRandom random) throws Exception {
+        long fileStart = System.nanoTime();
+        String file = filePath.getFileName().toString();
+        Map<String, Stratum> strata = new LinkedHashMap<>();
+        AtomicLong rowsRead = new AtomicLong();
+        WorkbookReader.read(filePath, ExcelProcessor.streamingReader, new WorkbookReader.SheetRowHandler() {
+            ColumnPlan plan;
+
+            @Override
+            public void header(String[] columns) {
+                Map<String, Integer> colIndices = new HashMap<>();
+                ExcelProcessor.indexColumns(columns, colIndices);
+                // no output rows are projected, only the lookups are needed
+                plan = new ColumnPlan(colIndices, Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+            }
+
+            @Override
+            public void row(int rowNum, String[] values) {
+                rowsRead.incrementAndGet();
+                String watchlist = ColumnPlan.value(values, plan.watchlist);
+                if (Constants.FAIL_STATUS.equals(ColumnPlan.value(values, plan.osStatus))) {
+                    stratum(watchlist, Constants.SHEET_OS).offer(new ExcelProcessor.PendingRow(rowNum, values), sampleSize, random);
+                }
+                if (Constants.FAIL_STATUS.equals(ColumnPlan.value(values, plan.otStatus))) {
+                    stratum(watchlist, Constants.SHEET_OT).offer(new ExcelProcessor.PendingRow(rowNum, values), sampleSize, random);
+                }
+            }
+
+            Stratum stratum(String watchlist, String sheet) {
+                return strata.computeIfAbsent(watchlist + '\u0000' + sheet, k -> new Stratum(file, watchlist, sheet, plan));
+            }
+        });
+        RunMetrics.add(RunMetrics.ROWS_READ, rowsRead.get());
+        RunMetrics.addPhase(RunMetrics.PHASE_PARSE, System.nanoTime() - fileStart);
+        RunMetrics.recordFile(filePath, rowsRead.get(), System.nanoTime() - fileStart, false);
+        return new ArrayList<>(strata.values());
+    }
+
+    // Looks up the sampled failures in batches and counts their comments per stratum
+    static void verify(List<Stratum> strata) {
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        for (Stratum stratum : strata) {
+            boolean os = Constants.SHEET_OS.equals(stratum.sheet);
+            for (ExcelProcessor.PendingRow pending : stratum.sample) {
+                ExcelProcessor.prepareRow(pending, stratum.plan);
+                // a row failing both is sampled separately for each sheet, each only needs its own lookups
+                if (os) {
+                    pending.isOtFail = false;
+                    pending.otInputCheck = null;
+                } else {
+                    pending.isOsFail = false;
+                    pending.osInputCheck = null;
+                }
+            }
+            for (List<ExcelProcessor.PendingRow> batch : BatchVerifier.partition(stratum.sample, ExcelProcessor.verificationBatchSize)) {
+                List<BatchVerifier.InputCheck> inputChecks = new ArrayList<>();
+                for (ExcelProcessor.PendingRow pending : batch) {
+                    inputChecks.add(os ? pending.osInputCheck : pending.otInputCheck);
+                }
+                lookups.add(BatchVerifier.verify(ExcelProcessor.scheduler, inputChecks, () -> ExcelProcessor.candidateChecks(batch, stratum.plan)));
+            }
+        }
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).join();
+
+        for (Stratum stratum : strata) {
+            for (ExcelProcessor.PendingRow pending : stratum.sample) {
+                String comment;
+                if (pending.isOsFail) {
+                    comment = ExcelProcessor.osComment(pending.osInputCheck.result);
+                } else {
+                    comment = ExcelProcessor.otComment(pending.candidateCheck != null ? pending.candidateCheck.result : Constants.NA);
+                }
+                stratum.comments.merge(comment, 1, Integer::sum);
+            }
+        }
+    }
+
+    // One row per comment of the sheet: estimated total, confidence interval, failures and sampled failures
+    static RowStore estimates(List<Stratum> strata, String sheet, List<String> comments) {
+        RowStore rows = new RowStore();
+        long failing = 0;
+        long sampled = 0;
+        for (Stratum stratum : strata) {
+            if (!sheet.equals(stratum.sheet)) continue;
+            failing += stratum.population;
+            sampled += stratum.sample.size();
+        }
+        for (String comment : comments) {
+            double total = 0;
+            double variance = 0;
+            long observed = 0;
+            for (Stratum stratum : strata) {
+                if (!sheet.equals(stratum.sheet) || stratum.sample.isEmpty()) continue;
+                double n = stratum.sample.size();
+                double population = stratum.population;
+                int count = stratum.comments.getOrDefault(comment, 0);
+                double p = count / n;
+                observed += count;
+                total += population * p;
+                if (n < population) {
+                    // sample variance of the 0/1 comment indicator; a single sample says nothing, assume the worst
+                    double s2 = n > 1 ? p * (1 - p) * n / (n - 1) : 0.25;
+                    variance += population * population * (1 - n / population) * s2 / n;
+                }
+            }
+            double margin = Constants.PREVIEW_Z * Math.sqrt(variance);
+            long estimate = Math.round(total);
+            // at least the failures seen with this comment, at most the failures not seen with another one
+            long low = Math.max(observed, (long) Math.floor(total - margin));
+            long high = Math.min(failing - (sampled - observed), (long) Math.ceil(total + margin));
+            log.info("Preview {} / {}: ~{} rows (95% CI {} - {}), {} of {} sampled failures", sheet, comment, estimate, low, high, observed, sampled);
+            rows.add(Arrays.asList(sheet, comment, String.valueOf(estimate), String.valueOf(low), String.valueOf(high),
+                    String.valueOf(failing), String.valueOf(sampled)));
+        }
+        return rows;
+    }
+
+    static RowStore strataRows(List<Stratum> strata) {
+        RowStore rows = new RowStore();
+        for (Stratum stratum : strata) {
+            List<Object> row = new ArrayList<>();
+            row.add(stratum.file);
+            row.add(stratum.watchlist);
+            row.add(stratum.sheet);
+            row.add(String.valueOf(stratum.population));
+            row.add(String.valueOf(stratum.sample.size()));
+            for (int c = 5; c < STRATA_HEADERS.size(); c++) {
+                row.add(String.valueOf(stratum.comments.getOrDefault(STRATA_HEADERS.get(c), 0)));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+}
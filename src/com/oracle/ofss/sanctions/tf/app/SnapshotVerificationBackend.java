@@ -0,0 +1,60 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import javax.sql.rowset.serial.SerialClob;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the checker lookups from a memory-mapped {@link VerificationSnapshot} instead of the database, for
+ * offline runs over an exported test cycle. Request ids, run keys and candidates the snapshot does not hold
+ * read as absent.
+ */
+public class SnapshotVerificationBackend implements VerificationBackend {
+
+    private final VerificationSnapshot snapshot;
+
+    public SnapshotVerificationBackend(VerificationSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public Session openSession() {
+        return new Session() {
+            @Override
+            public void fetchRequestDocuments(List<String> requestIds, DocumentConsumer consumer) throws Exception {
+                for (String requestId : requestIds) {
+                    for (String document : snapshot.documents(requestId)) {
+                        consumer.accept(requestId, new SerialClob(document.toCharArray()));
+                    }
+                }
+            }
+
+            @Override
+            public Map<String, BigDecimal> fetchRunKeys(List<String> requestIds) {
+                Map<String, BigDecimal> found = new HashMap<>();
+                for (String requestId : requestIds) {
+                    BigDecimal runKey = snapshot.runKey(requestId);
+                    if (runKey != null) {
+                        found.put(requestId, runKey);
+                    }
+                }
+                return found;
+            }
+
+            @Override
+            public boolean[] candidatesPresent(String table, String targetCol, List<BigDecimal> runKeys, List<String> nUids) {
+                boolean[] present = new boolean[runKeys.size()];
+                for (int i = 0; i < present.length; i++) {
+                    present[i] = snapshot.candidatePresent(table, targetCol, runKeys.get(i), nUids.get(i));
+                }
+                return present;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,199 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams an output as UTF-8 CSV (RFC 4180, header line first) or NDJSON (one object per row, keyed by header).
+ * Text formats have no sheets, so every sheet gets its own files:
+ * {@code <base>[ - <sheet>]-0001.csv}, the sheet part only when the output has more than one sheet.
+ * A file rolls over to the next numbered shard once it holds {@code maxRows} rows or {@code maxBytes} bytes;
+ * every shard starts with its own header line so it loads on its own.
+ */
+public class TextOutputSink implements OutputSink {
+
+    private static final Logger log = LoggerFactory.getLogger(TextOutputSink.class);
+    private static final byte[] NEWLINE = {'\n'};
+
+    public enum Format {
+        CSV(Constants.CSV_EXTENSION), NDJSON(Constants.NDJSON_EXTENSION);
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final String base;
+    private final Format format;
+    private final long maxRows;
+    private final long maxBytes;
+    private final Map<String, SheetFiles> sheets = new LinkedHashMap<>();
+
+    // outputFile names the output with the format's extension; maxRows or maxBytes <= 0 means no limit
+    public TextOutputSink(String outputFile, Format format, long maxRows, long maxBytes) {
+        this.base = outputFile.endsWith(format.extension) ? outputFile.substring(0, outputFile.length() - format.extension.length()) : outputFile;
+        this.format = format;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized void addSheet(String sheetName, List<String> headers) {
+        sheets.put(sheetName, new SheetFiles(sheetName, headers));
+    }
+
+    // Sheets write to files of their own, so they may be appended to concurrently
+    @Override
+    public void appendRows(String sheetName, RowStore rows) {
+        long start = System.nanoTime();
+        SheetFiles files = sheets.get(sheetName);
+        synchronized (files) {
+            try {
+                for (int r = 0; r < rows.size(); r++) {
+                    files.write(rows, r);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write " + files.fileName(files.shard), e);
+            }
+        }
+        RunMetrics.add(RunMetrics.ROWS_WRITTEN, rows.size());
+        RunMetrics.addPhase(RunMetrics.PHASE_WRITE, System.nanoTime() - start);
+    }
+
+    @Override
+    public String location() {
+        return base + "*" + format.extension;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            IOException failure = null;
+            for (SheetFiles files : sheets.values()) {
+                try {
+                    synchronized (files) {
+                        // an empty sheet still gets a file with its header
+                        if (files.out == null) files.open();
+                        files.closeShard();
+                    }
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        } finally {
+            RunMetrics.addPhase(RunMetrics.PHASE_FINALIZE, System.nanoTime() - start);
+        }
+    }
+
+    private class SheetFiles {
+        final String sheetName;
+        final List<String> headers;
+        OutputStream out;
+        int shard;
+        long rows;
+        long bytes;
+        String[] keys;
+
+        SheetFiles(String sheetName, List<String> headers) {
+            this.sheetName = sheetName;
+            this.headers = headers;
+        }
+
+        String fileName(int shard) {
+            String sheetPart = sheets.size() > 1 ? " - " + sheetName : "";
+            return String.format("%s%s-%04d%s", base, sheetPart, shard, format.extension);
+        }
+
+        void write(RowStore store, int r) throws IOException {
+            if (out == null || (maxRows > 0 && rows >= maxRows) || (maxBytes > 0 && bytes >= maxBytes)) {
+                closeShard();
+                open();
+            }
+            StringBuilder line = new StringBuilder(256);
+            if (format == Format.CSV) {
+                for (int c = 0; c < store.width(); c++) {
+                    if (c > 0) line.append(',');
+                    appendCsv(line, store.get(r, c));
+                }
+            } else {
+                line.append('{');
+                for (int c = 0; c < store.width(); c++) {
+                    if (c > 0) line.append(',');
+                    line.append(keys[c]).append(':').append(RunMetrics.quote(store.get(r, c)));
+                }
+                line.append('}');
+            }
+            writeLine(line);
+            rows++;
+        }
+
+        void open() throws IOException {
+            shard++;
+            out = new BufferedOutputStream(new FileOutputStream(fileName(shard)), 65536);
+            rows = 0;
+            bytes = 0;
+            if (format == Format.CSV) {
+                StringBuilder line = new StringBuilder();
+                for (int c = 0; c < headers.size(); c++) {
+                    if (c > 0) line.append(',');
+                    appendCsv(line, headers.get(c));
+                }
+                writeLine(line);
+            } else if (keys == null) {
+                // the headers are complete by the time the first row arrives
+                keys = new String[headers.size()];
+                for (int c = 0; c < keys.length; c++) {
+                    keys[c] = RunMetrics.quote(headers.get(c));
+                }
+            }
+        }
+
+        void closeShard() throws IOException {
+            if (out == null) return;
+            out.close();
+            out = null;
+            log.info("Wrote {} rows to {}", rows, fileName(shard));
+        }
+
+        private void writeLine(CharSequence line) throws IOException {
+            byte[] encoded = line.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(encoded);
+            out.write(NEWLINE);
+            bytes += encoded.length + 1;
+        }
+    }
+
+    // Quoted only when needed: a comma, quote or line break in the value
+    static void appendCsv(StringBuilder sb, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"') sb.append('"');
+            sb.append(ch);
+        }
+        sb.append('"');
+    }
+}
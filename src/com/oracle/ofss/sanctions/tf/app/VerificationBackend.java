@@ -0,0 +1,35 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import java.math.BigDecimal;
+import java.sql.Clob;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source of the data behind the checker lookups. BatchVerifier groups, caches and journals the checks;
+ * a backend only answers the three set-based questions it asks. The default backend queries the database.
+ */
+public interface VerificationBackend {
+
+    Session openSession();
+
+    // Lookups made for one batch of rows, typically on one connection
+    interface Session extends AutoCloseable {
+
+        // Hands every c_request_json document of the request ids to the consumer, in result order
+        void fetchRequestDocuments(List<String> requestIds, DocumentConsumer consumer) throws Exception;
+
+        // n_run_skey of the first matched result of each request id; ids without one are left out
+        Map<String, BigDecimal> fetchRunKeys(List<String> requestIds) throws Exception;
+
+        // For each (run key, n_uid) pair, whether rt_candidates holds it for the watchlist table with targetCol populated
+        boolean[] candidatesPresent(String table, String targetCol, List<BigDecimal> runKeys, List<String> nUids) throws Exception;
+
+        @Override
+        void close();
+    }
+
+    interface DocumentConsumer {
+        void accept(String requestId, Clob document) throws Exception;
+    }
+}
@@ -0,0 +1,167 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of finished checker lookups, so a run that dies part way can be resumed without repeating
+ * the queries it already made. Each record is framed as length, payload and CRC32; on resume the log is
+ * replayed up to the last intact record and anything after it (a write torn by the crash) is cut off.
+ *
+ * Records are buffered and flushed once per checker batch, which keeps the cost in the hot path to an
+ * in-memory copy. The flushed records are forced to disk at most every JOURNAL_SYNC_INTERVAL_MS and on close,
+ * so a machine crash loses at most that much of the run's lookups.
+ */
+public class VerificationJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(VerificationJournal.class);
+    static final byte INPUT_CHECK = 1;
+    static final byte CANDIDATE_CHECK = 2;
+
+    private final Path file;
+    // results of the run being resumed; this run's own results are only written
+    private final Map<String, String> results;
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private long lastSync = System.nanoTime();
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    private VerificationJournal(Path file, long validLength, Map<String, String> results) throws IOException {
+        this.file = file;
+        this.results = results;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(validLength);
+        }
+        this.fileOut = new FileOutputStream(file.toFile(), true);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+    }
+
+    // Opens the journal; with resume the recorded results are loaded, otherwise the journal starts empty
+    public static VerificationJournal open(Path file, boolean resume) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        if (!resume || !Files.exists(file)) {
+            VerificationJournal journal = new VerificationJournal(file, 0, Collections.emptyMap());
+            log.info("Verification journal started at {}", file);
+            return journal;
+        }
+        Map<String, String> replayed = new HashMap<>();
+        long validLength = replay(file, replayed);
+        VerificationJournal journal = new VerificationJournal(file, validLength, replayed);
+        log.info("Resuming with {} verification results from {}", replayed.size(), file);
+        return journal;
+    }
+
+    private static long replay(Path file, Map<String, String> results) throws IOException {
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > Constants.MAX_JOURNAL_RECORD_BYTES) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                String result = record.readUTF();
+                int parts = record.readInt();
+                String[] key = new String[parts];
+                for (int i = 0; i < parts; i++) {
+                    key[i] = readString(record);
+                }
+                results.put(key(type, key), result);
+                validLength += 4 + payload.length + 4;
+            }
+        }
+        if (validLength < Files.size(file)) {
+            log.warn("Discarding {} bytes of incomplete records at the end of {}", Files.size(file) - validLength, file);
+        }
+        return validLength;
+    }
+
+    public String lookup(byte type, String... key) {
+        return results.get(key(type, key));
+    }
+
+    public synchronized void record(byte type, String result, String... key) {
+        try {
+            record.reset();
+            recordOut.writeByte(type);
+            recordOut.writeUTF(result);
+            recordOut.writeInt(key.length);
+            for (String part : key) {
+                writeString(recordOut, part);
+            }
+            byte[] payload = record.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            log.warn("Could not write to verification journal {}: {}", file, e.getMessage());
+        }
+    }
+
+    public synchronized void flush() {
+        try {
+            out.flush();
+            if (System.nanoTime() - lastSync >= Constants.JOURNAL_SYNC_INTERVAL_MS * 1_000_000L) {
+                fileOut.getChannel().force(false);
+                lastSync = System.nanoTime();
+            }
+        } catch (IOException e) {
+            log.warn("Could not flush verification journal {}: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.flush();
+            fileOut.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String key(byte type, String... key) {
+        StringBuilder sb = new StringBuilder().append(type);
+        for (String part : key) {
+            sb.append('\u0000').append(part);
+        }
+        return sb.toString();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,263 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Local copy of the rows behind the checker lookups: the c_request_json documents and the n_run_skey of each
+ * request id, and the rt_candidates keys found per watchlist table, target column, run key and n_uid.
+ *
+ * The file holds the records one after the other, followed by one index per section (the record offsets
+ * sorted by key) and a footer pointing at the indexes. A lookup is a binary search over the memory-mapped
+ * index, so opening a snapshot costs nothing and the OS page cache keeps the hot parts in memory.
+ * Anything not in the snapshot reads as absent, as a database without those rows would answer.
+ */
+public class VerificationSnapshot implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(VerificationSnapshot.class);
+    private static final int MAGIC = 0x494C5331; // "ILS1"
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final int FOOTER_BYTES = 3 * 8 + 4;
+
+    static final int DOCUMENTS = 0;
+    static final int RUN_KEYS = 1;
+    static final int CANDIDATES = 2;
+
+    private final Path file;
+    private final FileChannel channel;
+    // files past 2 GB are mapped in segments, a record may span two of them
+    private final MappedByteBuffer[] segments;
+    private final long[] indexOffsets = new long[3];
+    private final int[] indexCounts = new int[3];
+
+    private VerificationSnapshot(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        long size = channel.size();
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+        for (int s = 0; s < segments.length; s++) {
+            long start = (long) s << SEGMENT_BITS;
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+        if (size < 4 + FOOTER_BYTES || getInt(0) != MAGIC || getInt(size - 4) != MAGIC) {
+            channel.close();
+            throw new IOException(file + " is not a verification snapshot or was not written completely");
+        }
+        for (int section = 0; section < 3; section++) {
+            long index = getLong(size - FOOTER_BYTES + section * 8L);
+            indexOffsets[section] = index + 4;
+            indexCounts[section] = getInt(index);
+        }
+    }
+
+    public static VerificationSnapshot open(Path file) throws IOException {
+        VerificationSnapshot snapshot = new VerificationSnapshot(file);
+        log.info("Verification snapshot {} opened: {} requests, {} run keys, {} candidate keys", file,
+                snapshot.indexCounts[DOCUMENTS], snapshot.indexCounts[RUN_KEYS], snapshot.indexCounts[CANDIDATES]);
+        return snapshot;
+    }
+
+    public static Writer create(Path file) throws IOException {
+        return new Writer(file);
+    }
+
+    // The documents of the request in result order, or an empty list
+    public List<String> documents(String requestId) {
+        long value = find(DOCUMENTS, key(requestId));
+        if (value < 0) return Collections.emptyList();
+        int count = getInt(value);
+        List<String> documents = new ArrayList<>(count);
+        long pos = value + 4;
+        for (int d = 0; d < count; d++) {
+            int length = getInt(pos);
+            documents.add(new String(getBytes(pos + 4, length), StandardCharsets.UTF_8));
+            pos += 4 + length;
+        }
+        return documents;
+    }
+
+    public BigDecimal runKey(String requestId) {
+        long value = find(RUN_KEYS, key(requestId));
+        if (value < 0) return null;
+        return new BigDecimal(new String(getBytes(value + 4, getInt(value)), StandardCharsets.UTF_8));
+    }
+
+    public boolean candidatePresent(String table, String targetCol, BigDecimal runKey, String nUid) {
+        return find(CANDIDATES, candidateKey(table, targetCol, runKey, nUid)) >= 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    static byte[] key(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] candidateKey(String table, String targetCol, BigDecimal runKey, String nUid) {
+        return key(table + '\u0000' + targetCol + '\u0000' + runKey.toPlainString() + '\u0000' + nUid);
+    }
+
+    // Position of the value of the record with this key, or -1. Records are [key length][key][value].
+    private long find(int section, byte[] key) {
+        int low = 0;
+        int high = indexCounts[section] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long record = getLong(indexOffsets[section] + mid * 8L);
+            int keyLength = getInt(record);
+            int cmp = Arrays.compareUnsigned(getBytes(record + 4, keyLength), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return record + 4 + keyLength;
+            }
+        }
+        return -1;
+    }
+
+    private int getInt(long pos) {
+        if ((pos & (SEGMENT_SIZE - 1)) <= SEGMENT_SIZE - 4) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & (SEGMENT_SIZE - 1)));
+        }
+        byte[] b = getBytes(pos, 4);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    private long getLong(long pos) {
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+    }
+
+    private byte[] getBytes(long pos, int length) {
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length) {
+            long at = pos + done;
+            int offset = (int) (at & (SEGMENT_SIZE - 1));
+            MappedByteBuffer segment = segments[(int) (at >>> SEGMENT_BITS)];
+            int n = Math.min(length - done, segment.limit() - offset);
+            segment.get(offset, bytes, done, n);
+            done += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a snapshot: records are appended as the lookups are made, the indexes and footer on close.
+     * The file appears under its name only once it is complete.
+     */
+    public static class Writer implements Closeable {
+        private final Path file;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private long position;
+        // offset of the latest record per key; a key written again (e.g. on a retry) replaces the earlier one
+        private final List<Map<String, Long>> offsets = Arrays.asList(new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536));
+            out.writeInt(MAGIC);
+            position = 4;
+        }
+
+        // Copies the documents of a request from a spool of UTF-8 text, each given as its start and end offset,
+        // a buffer at a time
+        public synchronized void documents(String requestId, FileChannel spool, List<long[]> documents) throws IOException {
+            startRecord(DOCUMENTS, requestId);
+            out.writeInt(documents.size());
+            position += 4;
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            for (long[] document : documents) {
+                long length = document[1] - document[0];
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Document of request " + requestId + " is too large for a snapshot: " + length + " bytes");
+                }
+                out.writeInt((int) length);
+                for (long at = document[0]; at < document[1]; ) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), document[1] - at));
+                    int n = spool.read(buffer, at);
+                    if (n < 0) throw new EOFException("Spooled documents of request " + requestId + " end early");
+                    out.write(buffer.array(), 0, n);
+                    at += n;
+                }
+                position += 4 + length;
+            }
+        }
+
+        public synchronized void runKey(String requestId, BigDecimal runKey) throws IOException {
+            byte[] bytes = runKey.toPlainString().getBytes(StandardCharsets.UTF_8);
+            startRecord(RUN_KEYS, requestId);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            position += 4 + bytes.length;
+        }
+
+        public synchronized void candidatePresent(String table, String targetCol, BigDecimal runKey, String nUid) throws IOException {
+            byte[] key = candidateKey(table, targetCol, runKey, nUid);
+            offsets.get(CANDIDATES).put(new String(key, StandardCharsets.UTF_8), position);
+            out.writeInt(key.length);
+            out.write(key);
+            position += 4 + key.length;
+        }
+
+        private void startRecord(int section, String key) throws IOException {
+            byte[] bytes = key(key);
+            offsets.get(section).put(key, position);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            position += 4 + bytes.length;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            long[] indexes = new long[3];
+            for (int section = 0; section < 3; section++) {
+                List<Map.Entry<String, Long>> entries = new ArrayList<>(offsets.get(section).entrySet());
+                List<byte[]> keys = new ArrayList<>(entries.size());
+                Integer[] order = new Integer[entries.size()];
+                for (int i = 0; i < order.length; i++) {
+                    keys.add(key(entries.get(i).getKey()));
+                    order[i] = i;
+                }
+                Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys.get(a), keys.get(b)));
+                indexes[section] = position;
+                out.writeInt(order.length);
+                for (Integer i : order) {
+                    out.writeLong(entries.get(i).getValue());
+                }
+                position += 4 + 8L * order.length;
+            }
+            for (long index : indexes) {
+                out.writeLong(index);
+            }
+            out.writeInt(MAGIC);
+            out.close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Verification snapshot written to {}: {} requests, {} run keys, {} candidate keys", file,
+                    offsets.get(DOCUMENTS).size(), offsets.get(RUN_KEYS).size(), offsets.get(CANDIDATES).size());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Single work-stealing pool shared by all input files. Each file is read on a reader thread of its own, which
+ * hands its row chunks to the pool, so idle workers pick up chunks of whichever file still has work. The
+ * readers wait for their chunks outside the pool, which therefore never adds compensation threads.
+ *
+ * The {@code threads} setting is split between the two: one in THREADS_PER_READER threads reads files and the
+ * rest run chunks, at least one of each. A reader spends much of its time waiting for room in its chunk queue,
+ * while the chunks carry the checker lookups, so the workers get the larger share; together they stay within
+ * {@code threads} (two threads when it is 1), and so do the chunks, and with them database sessions, running
+ * at once.
+ *
+ * In virtual-thread mode the chunks, which spend most of their time waiting on checker queries, run on
+ * virtual threads instead and all of the threads read files.
+ *
+ * Delayed work (retries waiting out a backoff) sits on a single timer thread and is handed back to the pool
+ * when it is due, so no worker sleeps through the delay.
+ */
+public class WorkScheduler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkScheduler.class);
+    private final ForkJoinPool pool;
+    private final ExecutorService readers;
+    private final ExecutorService virtualExecutor;
+    private final ScheduledExecutorService timer;
+    private final int maxChunksInFlight;
+
+    public WorkScheduler(int parallelism, boolean virtualThreads) {
+        this.virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        int readerThreads = virtualExecutor != null ? parallelism : Math.max(1, parallelism / Constants.THREADS_PER_READER);
+        int workerThreads = Math.max(1, parallelism - readerThreads);
+        // no more workers than their share even if a task blocks; a blocked worker is not replaced
+        this.pool = new ForkJoinPool(workerThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true,
+                0, workerThreads, 1, p -> true, 60, TimeUnit.SECONDS);
+        AtomicInteger readerCount = new AtomicInteger();
+        this.readers = Executors.newFixedThreadPool(readerThreads, r -> {
+            Thread thread = new Thread(r, "work-scheduler-reader-" + readerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (virtualExecutor != null) {
+            log.info("Row chunks run on virtual threads, files are parsed on {} platform threads", readerThreads);
+            this.maxChunksInFlight = Constants.DEFAULT_VIRTUAL_CHUNKS_IN_FLIGHT;
+        } else {
+            log.info("Files are parsed on {} threads, row chunks run on {}", readerThreads, workerThreads);
+            this.maxChunksInFlight = workerThreads * Constants.DEFAULT_CHUNKS_IN_FLIGHT_PER_THREAD;
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "work-scheduler-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    // Looked up reflectively so the utility still builds and runs on JDKs without virtual threads
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Virtual threads are not available on Java {}, falling back to platform threads", System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    // Runs the task once per item on the reader threads and waits until all of them are done
+    public <T> void runAll(List<T> items, Consumer<T> task) {
+        List<Future<?>> tasks = new ArrayList<>();
+        for (T item : items) {
+            tasks.add(readers.submit(() -> task.accept(item)));
+        }
+        for (Future<?> t : tasks) {
+            try {
+                t.get();
+            } catch (ExecutionException e) {
+                log.error("Error in scheduled task: {}", e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while waiting for scheduled tasks");
+                return;
+            }
+        }
+    }
+
+    public ChunkQueue newChunkQueue() {
+        return new ChunkQueue();
+    }
+
+    // Runs the task on the chunk threads once the delay has passed
+    public void schedule(Runnable task, long delayMillis) {
+        timer.schedule(() -> execute(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs the task on the chunk threads
+    public void execute(Runnable task) {
+        if (virtualExecutor != null) {
+            virtualExecutor.execute(task);
+        } else {
+            pool.execute(task);
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+        readers.shutdown();
+        pool.shutdown();
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        }
+    }
+
+    // Chunk tasks of one file. Used from the single thread reading that file.
+    public class ChunkQueue {
+        private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        private long waitNanos;
+
+        // The chunk returns a future for the end of its work, which may come after the task itself has
+        // returned, e.g. when its lookups wait for a retry
+        public void submit(Callable<? extends CompletableFuture<?>> chunk) throws Exception {
+            CompletableFuture<Object> done = new CompletableFuture<>();
+            Runnable body = () -> {
+                try {
+                    chunk.call().whenComplete((result, error) -> {
+                        if (error != null) {
+                            done.completeExceptionally(error);
+                        } else {
+                            done.complete(result);
+                        }
+                    });
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                }
+            };
+            Future<?> task = virtualExecutor != null ? virtualExecutor.submit(body) : pool.submit(body);
+            inFlight.add(new InFlight(task, done));
+            // the reader waits for the oldest chunk instead of running ahead of the workers
+            if (inFlight.size() > maxChunksInFlight) {
+                long start = System.nanoTime();
+                while (inFlight.size() > maxChunksInFlight) {
+                    await(inFlight.poll());
+                }
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        // Time submit() spent waiting for the workers so far
+        public long waitNanos() {
+            return waitNanos;
+        }
+
+        public void awaitAll() throws Exception {
+            while (!inFlight.isEmpty()) {
+                await(inFlight.poll());
+            }
+        }
+
+        public void cancelAll() {
+            for (InFlight chunk : inFlight) {
+                chunk.task.cancel(false);
+            }
+            inFlight.clear();
+        }
+
+        // Blocks the reader thread only; the chunk runs on the workers
+        private void await(InFlight chunk) throws Exception {
+            try {
+                chunk.done.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    private static class InFlight {
+        final Future<?> task;
+        final CompletableFuture<?> done;
+
+        InFlight(Future<?> task, CompletableFuture<?> done) {
+            this.task = task;
+            this.done = done;
+        }
+    }
+}
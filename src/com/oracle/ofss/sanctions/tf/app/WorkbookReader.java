@@ -0,0 +1,191 @@
+package com.oracle.ofss.sanctions.tf.app;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Reads the first sheet of an input workbook and hands the header row and every data row to a
+ * {@link SheetRowHandler} as plain string arrays.
+ *
+ * The DOM mode loads the workbook through {@link WorkbookFactory}. The streaming mode walks the sheet XML
+ * with the XSSF event API and the read-only shared-strings table, so only the current row is held on heap.
+ * Both modes render cell values the same way as {@code Cell.toString().trim()}.
+ */
+public class WorkbookReader {
+
+    public interface SheetRowHandler {
+        // columns[i] is null where the header cell is missing
+        void header(String[] columns) throws Exception;
+
+        // values has one entry per header column, "" for empty cells
+        void row(int rowNum, String[] values) throws Exception;
+
+        // called once after the last row of the sheet
+        default void endSheet() throws Exception {
+        }
+    }
+
+    public static void read(Path filePath, boolean streaming, SheetRowHandler handler) throws Exception {
+        if (streaming) {
+            readStreaming(filePath, handler);
+        } else {
+            readWorkbook(filePath, handler);
+        }
+    }
+
+    static void readWorkbook(Path filePath, SheetRowHandler handler) throws Exception {
+        try (Workbook wb = WorkbookFactory.create(filePath.toFile())) {
+            Sheet sheet = wb.getSheetAt(0);
+            Row headerRow = sheet.getRow(0);
+            String[] columns = new String[Math.max(headerRow.getLastCellNum(), 0)];
+            for (int i = 0; i < columns.length; i++) {
+                Cell cell = headerRow.getCell(i);
+                if (cell != null) {
+                    columns[i] = cell.getStringCellValue();
+                }
+            }
+            handler.header(columns);
+
+            for (int r = 1; r <= sheet.getLastRowNum(); r++) {
+                Row row = sheet.getRow(r);
+                if (row == null) continue;
+                String[] values = new String[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    values[c] = ExcelProcessor.getCellValue(row, c);
+                }
+                handler.row(r, values);
+            }
+            handler.endSheet();
+        }
+    }
+
+    static void readStreaming(Path filePath, SheetRowHandler handler) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(filePath.toFile(), PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg, false);
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                throw new IllegalStateException("No sheets found in " + filePath);
+            }
+            RowCollector collector = new RowCollector(handler);
+            try (InputStream sheetData = sheets.next()) {
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(), null, strings,
+                        collector, new CellToStringFormatter(), true));
+                parser.parse(new InputSource(sheetData));
+            } catch (RowHandlerException e) {
+                // checked exceptions from the row handler are tunnelled through the SAX callbacks
+                throw (Exception) e.getCause();
+            }
+            if (collector.columns == null) {
+                throw new IllegalStateException("No header row found in " + filePath);
+            }
+            handler.endSheet();
+        }
+    }
+
+    // Collects the cells of the current row and dispatches it when the row ends
+    private static class RowCollector implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final SheetRowHandler handler;
+        private String[] columns;
+        private String[] values;
+        private int currentRow;
+        private int lastCol;
+
+        RowCollector(SheetRowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            currentRow = rowNum;
+            lastCol = -1;
+            if (columns == null) {
+                values = new String[16];
+            } else {
+                values = new String[columns.length];
+                Arrays.fill(values, "");
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int col = cellReference == null ? lastCol + 1 : columnIndex(cellReference);
+            lastCol = col;
+            if (columns == null) {
+                // header row, width unknown until the row ends
+                if (currentRow != 0) return;
+                if (col >= values.length) values = Arrays.copyOf(values, Math.max(col + 1, values.length * 2));
+                values[col] = formattedValue;
+            } else if (col < values.length) {
+                values[col] = formattedValue == null ? "" : formattedValue.trim();
+            }
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            try {
+                if (columns == null) {
+                    if (rowNum != 0) return;
+                    int width = values.length;
+                    while (width > 0 && values[width - 1] == null) width--;
+                    columns = Arrays.copyOf(values, width);
+                    handler.header(columns);
+                } else {
+                    handler.row(rowNum, values);
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RowHandlerException(e);
+            }
+        }
+    }
+
+    // Turns a cell reference such as "AB12" into a zero-based column index
+    static int columnIndex(String cellReference) {
+        int col = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            char ch = cellReference.charAt(i);
+            if (ch < 'A' || ch > 'Z') break;
+            col = col * 26 + (ch - 'A' + 1);
+        }
+        return col - 1;
+    }
+
+    // Formats numeric cells the way Cell.toString() does so both reader modes produce identical values
+    static class CellToStringFormatter extends DataFormatter {
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString) {
+            if (DateUtil.isADateFormat(formatIndex, formatString) && DateUtil.isValidExcelDate(value)) {
+                SimpleDateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy", LocaleUtil.getUserLocale());
+                sdf.setTimeZone(LocaleUtil.getUserTimeZone());
+                return sdf.format(DateUtil.getJavaDate(value));
+            }
+            return Double.toString(value);
+        }
+    }
+
+    static class RowHandlerException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RowHandlerException(Exception cause) {
+            super(cause);
+        }
+    }
+}